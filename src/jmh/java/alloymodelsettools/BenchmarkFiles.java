@@ -0,0 +1,32 @@
+package alloymodelsettools;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// The bundled model sets the benchmarks run on. Set -DmodelSets=<dir> to use another directory.
+public class BenchmarkFiles {
+    static File modelSets() {
+        return new File(System.getProperty("modelSets", "model-sets"));
+    }
+
+    static List<File> alsFiles() {
+        Collection<File> files = FileUtils.listFiles(modelSets(), new String[]{"als"}, true);
+        List<File> sorted = new ArrayList<>(files);
+        sorted.sort(null);
+        return sorted;
+    }
+
+    static List<String> contents() throws IOException {
+        List<String> contents = new ArrayList<>();
+        for (File file : alsFiles()) {
+            contents.add(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        }
+        return contents;
+    }
+}
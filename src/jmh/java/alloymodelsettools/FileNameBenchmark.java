@@ -0,0 +1,58 @@
+package alloymodelsettools;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// The multiple version filter of AlloyModelSetTools on the file names of the bundled model sets.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileNameBenchmark {
+    List<String> names = new ArrayList<>();
+    File directory;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        AlloyModelSetTools.logger = Logger.getLogger("MyLog");
+        for (File file : BenchmarkFiles.alsFiles()) {
+            names.add(file.getName());
+        }
+    }
+
+    // RemoveMultipleVersionInDirectory deletes files, so every invocation gets a fresh directory of empty files
+    @Setup(Level.Invocation)
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("versions").toFile();
+        for (String name : names) {
+            new File(directory, name).createNewFile();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void prefixOf(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(AlloyModelSetTools.prefixOf(name));
+        }
+    }
+
+    @Benchmark
+    public void removeMultipleVersionInDirectory() {
+        AlloyModelSetTools.RemoveMultipleVersionInDirectory(directory);
+    }
+}
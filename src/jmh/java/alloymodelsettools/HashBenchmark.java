@@ -0,0 +1,40 @@
+package alloymodelsettools;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// util.sha256 on a repository url, as used to name cloned repositories, and on a whole model, read as a String or
+// hashed from the memory-mapped file.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HashBenchmark {
+    String url = "https://github.com/AlloyTools/models.git";
+    Path model;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        model = BenchmarkFiles.alsFiles().get(0).toPath();
+    }
+
+    @Benchmark
+    public String sha256Url() {
+        return util.sha256(url);
+    }
+
+    @Benchmark
+    public String sha256ReadString() throws IOException {
+        return util.sha256(Files.readString(model));
+    }
+
+    @Benchmark
+    public String sha256Mapped() throws IOException {
+        return util.sha256(model);
+    }
+}
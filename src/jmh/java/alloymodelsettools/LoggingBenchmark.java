@@ -0,0 +1,82 @@
+package alloymodelsettools;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+// Time one searched file costs its caller to log, as the records of a file whose scope is found in six probes.
+// "none" logs nothing, "text" is the FileHandler and SimpleFormatter setup the scripts used before Logging, "json"
+// is Logging with async set to false and "async" is Logging as the scripts run it. The per-file overhead of a setup
+// is its score minus the score of "none". The work of a file between its records keeps the writer of "async" ahead
+// of the caller, as probes taking seconds do, so that no record is dropped.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LoggingBenchmark {
+    @Param({"none", "text", "json", "async"})
+    public String handler;
+
+    // Blackhole.consumeCPU tokens of work for each probe of the file
+    @Param({"20000"})
+    public long probe_work;
+
+    static final String PATH = "model-sets/2021-05-25-13-24-28/github/models/examples/toys/ceilingsAndFloors.als";
+    static final String RECORD = "ProbeRecord{outcome=SAT, parseTime=183211045, executionTime=2310553001, "
+            + "primaryVars=2048, clauses=65536}";
+
+    File log;
+    Logger logger;
+    Handler file_handler;
+    int run = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        log = File.createTempFile("logging", ".log");
+        logger = Logger.getLogger(LoggingBenchmark.class.getName() + "." + handler);
+        logger.setUseParentHandlers(false);
+        Logging.async = !handler.equals("json");
+        if (handler.equals("text")) {
+            System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tc %2$s%n%4$s: %5$s%6$s%n");
+            file_handler = new FileHandler(log.getPath(), true);
+            file_handler.setFormatter(new SimpleFormatter());
+        } else if (!handler.equals("none")) {
+            file_handler = new Logging.AsyncJsonHandler(new FileHandler(log.getPath(), true));
+        }
+        if (file_handler != null) logger.addHandler(file_handler);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (file_handler instanceof Logging.AsyncJsonHandler) {
+            System.out.println("Dropped records: " + ((Logging.AsyncJsonHandler) file_handler).dropped.get());
+        }
+        if (file_handler != null) file_handler.close();
+        log.delete();
+        Logging.async = true;
+    }
+
+    void log(String message) {
+        if (file_handler != null) logger.info(message);
+    }
+
+    @Benchmark
+    public void searchFile() {
+        log("RUN NO. " + run++ + ", " + PATH);
+        log("Searching scope with strategy OVERALL");
+        for (int probe = 0; probe < 6; probe++) {
+            Blackhole.consumeCPU(probe_work);
+            log(RECORD);
+            log("Takes too short!");
+        }
+        log(ExtractModels.successMessage(0, 7));
+    }
+}
@@ -0,0 +1,36 @@
+package alloymodelsettools;
+
+import edu.mit.csail.sdg.parser.CompUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Parsing and type checking every bundled model, the cost RemoveDoNotParse and every probe pay per file.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ParseBenchmark {
+    List<File> files;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        files = BenchmarkFiles.alsFiles();
+    }
+
+    @Benchmark
+    public void parseEverything(Blackhole blackhole) {
+        for (File file : files) {
+            try {
+                blackhole.consume(CompUtil.parseEverything_fromFile(null, null, file.getPath()));
+            } catch (Exception e) {
+                // Models that do not parse cost what it takes to find out
+                blackhole.consume(e);
+            }
+        }
+    }
+}
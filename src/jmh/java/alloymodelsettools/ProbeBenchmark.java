@@ -0,0 +1,37 @@
+package alloymodelsettools;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Round trip of runCommand on a trivial model: starting a RunCommand process, parsing, solving and reading its
+// ProbeRecord back. This is the fixed cost every probe of ExtractModels pays on top of solving.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ProbeBenchmark {
+    File model;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ExtractModels.logger = Logger.getLogger("MyLog");
+        model = File.createTempFile("trivial", ".als");
+        Files.writeString(model.toPath(), "sig A {}\nrun {} for 1\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        model.delete();
+    }
+
+    @Benchmark
+    public ExtractModels.Result runCommand() {
+        return ExtractModels.runCommand(model.getPath(), 0, -1, RunCommand.ScopeStrategy.OVERALL);
+    }
+}
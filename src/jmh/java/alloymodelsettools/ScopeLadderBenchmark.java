@@ -0,0 +1,44 @@
+package alloymodelsettools;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A ladder of scopes of one command, run cold with one RunCommand process per scope, as ExtractModels probes, and
+// warm with one RunCommand process for the whole ladder, see ScopeLadder.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class ScopeLadderBenchmark {
+    static final List<String> SCOPES = List.of("1", "2", "3", "4", "5", "6");
+    File model;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        model = File.createTempFile("ladder", ".als");
+        Files.writeString(model.toPath(), "sig Node { next: lone Node }\n"
+                + "fact { no n: Node | n in n.^next }\n"
+                + "run { some n: Node | no n.next and some next.n } for 3\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        model.delete();
+    }
+
+    @Benchmark
+    public ScopeLadder.Run cold() throws IOException {
+        return ScopeLadder.cold(model.getPath(), 0, SCOPES, RunCommand.ScopeStrategy.OVERALL);
+    }
+
+    @Benchmark
+    public ScopeLadder.Run warm() throws IOException {
+        return ScopeLadder.warm(model.getPath(), 0, SCOPES, RunCommand.ScopeStrategy.OVERALL);
+    }
+}
@@ -0,0 +1,38 @@
+package alloymodelsettools;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Removing comments and commands from the bundled models and adding a new command, as ExtractModelsFromFile and
+// recreateModelSet do before writing a model.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class StripBenchmark {
+    List<String> contents;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        contents = BenchmarkFiles.contents();
+    }
+
+    @Benchmark
+    public void strip(Blackhole blackhole) {
+        for (String content : contents) {
+            blackhole.consume(AlloyLexer.strip(content));
+        }
+    }
+
+    @Benchmark
+    public void stripAndAddCommand(Blackhole blackhole) {
+        for (String content : contents) {
+            blackhole.consume(AlloyLexer.strip(content).withCommand("run {} for 3"));
+        }
+    }
+}
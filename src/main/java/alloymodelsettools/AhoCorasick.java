@@ -0,0 +1,96 @@
+package alloymodelsettools;
+
+import java.util.*;
+
+// Finds which of many patterns occur in a text in one pass over the text, whatever the number of patterns
+// (Aho-Corasick automaton). Built once per run for the hitlist filter.
+public class AhoCorasick {
+    final List<String> patterns;
+    final boolean caseInsensitive;
+    final boolean stem;
+    // Trie transitions of every state, state 0 is the root
+    final List<Map<Character, Integer>> transitions = new ArrayList<>();
+    // Longest proper suffix of every state that is also a state
+    int[] fail;
+    // Smallest index of a pattern ending at every state, directly or through its fail links, MAX_VALUE if none
+    int[] best;
+
+    // With caseInsensitive, patterns and texts are compared in lower case. With stem, a pattern also matches without
+    // its plural or verb ending, so "lists" matches "list" and "undirected" matches "undirect".
+    public AhoCorasick(List<String> patterns, boolean caseInsensitive, boolean stem) {
+        this.patterns = patterns;
+        this.caseInsensitive = caseInsensitive;
+        this.stem = stem;
+        transitions.add(new HashMap<>());
+        List<Integer> ends = new ArrayList<>();
+        ends.add(Integer.MAX_VALUE);
+        for (int p = 0; p < patterns.size(); p++) {
+            int state = 0;
+            for (char c : normalize(patterns.get(p)).toCharArray()) {
+                Integer next = transitions.get(state).get(c);
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.get(state).put(c, next);
+                    transitions.add(new HashMap<>());
+                    ends.add(Integer.MAX_VALUE);
+                }
+                state = next;
+            }
+            ends.set(state, Math.min(ends.get(state), p));
+        }
+        fail = new int[transitions.size()];
+        best = new int[transitions.size()];
+        best[0] = ends.get(0);
+        // Breadth first, so that the fail state of a state is done before it
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : transitions.get(0).values()) {
+            fail[child] = 0;
+            best[child] = ends.get(child);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> edge : transitions.get(state).entrySet()) {
+                int child = edge.getValue();
+                int f = fail[state];
+                while (f != 0 && !transitions.get(f).containsKey(edge.getKey())) f = fail[f];
+                Integer target = transitions.get(f).get(edge.getKey());
+                fail[child] = target != null && target != child ? target : 0;
+                best[child] = Math.min(ends.get(child), best[fail[child]]);
+                queue.add(child);
+            }
+        }
+    }
+
+    String normalize(String s) {
+        if (caseInsensitive) s = s.toLowerCase(Locale.ROOT);
+        if (stem) {
+            for (String ending : new String[]{"ing", "es", "ed", "s"}) {
+                if (s.endsWith(ending) && s.length() - ending.length() >= 3) {
+                    return s.substring(0, s.length() - ending.length());
+                }
+            }
+        }
+        return s;
+    }
+
+    // Index of the first pattern, in the order they were given, that occurs in text, -1 if none does
+    public int match(String text) {
+        if (caseInsensitive) text = text.toLowerCase(Locale.ROOT);
+        int state = 0;
+        int found = best[0];
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            while (state != 0 && !transitions.get(state).containsKey(c)) state = fail[state];
+            state = transitions.get(state).getOrDefault(c, 0);
+            found = Math.min(found, best[state]);
+        }
+        return found == Integer.MAX_VALUE ? -1 : found;
+    }
+
+    // The first pattern that occurs in text, null if none does
+    public String firstMatch(String text) {
+        int p = match(text);
+        return p < 0 ? null : patterns.get(p);
+    }
+}
@@ -0,0 +1,176 @@
+package alloymodelsettools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Scans an Alloy model once, in linear time, to remove its comments and find its commands. A command spans from its
+// optional "name :" label or its run/check keyword to the next paragraph keyword outside braces, or to the end of the
+// model. Double-quoted strings are kept as they are.
+public class AlloyLexer {
+    // Keywords a paragraph can start with
+    static final Set<String> PARAGRAPH_KEYWORDS = new HashSet<>(Arrays.asList("abstract", "assert", "check", "enum",
+            "fact", "fun", "let", "lone", "module", "one", "open", "pred", "private", "run", "sig", "some", "var"));
+
+    public static class Stripped {
+        // The model without comments
+        public final String content;
+        // Start and end offsets in content of every command, in order
+        public final List<int[]> commands;
+        // Start and end offsets of the same commands in the scanned model
+        public final List<int[]> sourceCommands;
+
+        Stripped(String content, List<int[]> commands, List<int[]> sourceCommands) {
+            this.content = content;
+            this.commands = commands;
+            this.sourceCommands = sourceCommands;
+        }
+
+        // Index of the command at the given offset of the scanned model, -1 if there is none
+        public int commandAt(int sourceOffset) {
+            for (int k = 0; k < sourceCommands.size(); k++) {
+                if (sourceCommands.get(k)[0] <= sourceOffset && sourceOffset < sourceCommands.get(k)[1]) return k;
+            }
+            return -1;
+        }
+
+        // Text of the i-th command, "" if there is none
+        public String command(int i) {
+            if (i < 0 || i >= commands.size()) return "";
+            return content.substring(commands.get(i)[0], commands.get(i)[1]);
+        }
+
+        // The content with every command replaced by a line break, followed by the given command on its own line
+        public String withCommand(String command) {
+            return replaceCommands(-1, "") + "\n" + command + "\n";
+        }
+
+        // The content with the k-th command replaced by the given command and every other command replaced by a
+        // line break
+        public String replaceCommands(int k, String command) {
+            StringBuilder sb = new StringBuilder(content.length() + command.length() + 2);
+            int from = 0;
+            for (int j = 0; j < commands.size(); j++) {
+                sb.append(content, from, commands.get(j)[0]).append(j == k ? command : "").append('\n');
+                from = commands.get(j)[1];
+            }
+            return sb.append(content, from, content.length()).toString();
+        }
+    }
+
+    static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c);
+    }
+
+    static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '\'' || c == '"';
+    }
+
+    public static Stripped strip(String source) {
+        StringBuilder out = new StringBuilder(source.length());
+        List<int[]> commands = new ArrayList<>();
+        List<int[]> sourceCommands = new ArrayList<>();
+        int n = source.length();
+        int depth = 0;
+        // Start in out of the command being scanned, -1 if none
+        int commandStart = -1;
+        int commandSourceStart = -1;
+        // Start in out of the last identifier outside braces, and whether it was followed by a colon
+        int lastIdentifier = -1;
+        int lastIdentifierSource = -1;
+        boolean labelled = false;
+        int i = 0;
+        while (i < n) {
+            char c = source.charAt(i);
+            char next = i + 1 < n ? source.charAt(i + 1) : 0;
+            if ((c == '/' && next == '/') || (c == '-' && next == '-')) {
+                while (i < n && source.charAt(i) != '\n') i++;
+            } else if (c == '/' && next == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 2;
+                // Keeps the tokens on both sides apart
+                out.append(' ');
+            } else if (c == '"') {
+                int start = i++;
+                while (i < n && source.charAt(i) != '"') {
+                    i += source.charAt(i) == '\\' ? 2 : 1;
+                }
+                i = Math.min(i + 1, n);
+                out.append(source, start, i);
+                lastIdentifier = -1;
+                labelled = false;
+            } else if (isIdentifierStart(c)) {
+                int start = i;
+                while (i < n && isIdentifierPart(source.charAt(i))) i++;
+                String word = source.substring(start, i);
+                int position = out.length();
+                if (depth == 0 && PARAGRAPH_KEYWORDS.contains(word)) {
+                    boolean isCommand = word.equals("run") || word.equals("check");
+                    int paragraphStart = isCommand && labelled ? lastIdentifier : position;
+                    int paragraphSourceStart = isCommand && labelled ? lastIdentifierSource : start;
+                    if (commandStart >= 0) {
+                        commands.add(new int[]{commandStart, paragraphStart});
+                        sourceCommands.add(new int[]{commandSourceStart, paragraphSourceStart});
+                    }
+                    commandStart = isCommand ? paragraphStart : -1;
+                    commandSourceStart = isCommand ? paragraphSourceStart : -1;
+                    lastIdentifier = -1;
+                } else {
+                    lastIdentifier = depth == 0 ? position : -1;
+                    lastIdentifierSource = start;
+                }
+                labelled = false;
+                out.append(source, start, i);
+            } else {
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth = Math.max(0, depth - 1);
+                }
+                if (c == ':' && lastIdentifier >= 0 && !labelled) {
+                    labelled = true;
+                } else if (!Character.isWhitespace(c)) {
+                    lastIdentifier = -1;
+                    labelled = false;
+                }
+                out.append(c);
+                i++;
+            }
+        }
+        if (commandStart >= 0) {
+            commands.add(new int[]{commandStart, out.length()});
+            sourceCommands.add(new int[]{commandSourceStart, n});
+        }
+        return new Stripped(out.toString(), commands, sourceCommands);
+    }
+
+    // Offset of the first of the given words outside braces in a text without comments, -1 if there is none
+    public static int indexOfWord(String text, Set<String> words) {
+        int depth = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    i += text.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+            } else if (isIdentifierStart(c)) {
+                int start = i;
+                while (i < text.length() && isIdentifierPart(text.charAt(i))) i++;
+                if (depth == 0 && words.contains(text.substring(start, i))) return start;
+            } else {
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth = Math.max(0, depth - 1);
+                }
+                i++;
+            }
+        }
+        return -1;
+    }
+}
@@ -27,10 +27,8 @@ import java.nio.file.*;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 import edu.mit.csail.sdg.ast.Module;
 import edu.mit.csail.sdg.parser.CompUtil;
@@ -60,17 +58,32 @@ public class AlloyModelSetTools {
     // Remove files with common file names to avoid extracting models with high similarity, like those in Jackson's
     // book.
     static boolean hitlistFilter = true;
+    // Jackson's models are found by content: a file is removed when its tokens, without comments, whitespace, module
+    // name and commands, are those of a model in model-sets/<jackson_model_dir>.
     static String jackson_model_dir = "2021-05-25-13-24-28-jackson";
+    // Also remove every file whose name contains one of jackson_model_names, as earlier versions of this script did
+    static boolean hitlist_by_name = false;
     static String[] jackson_model_names = {"abstractMemory", "addressBook", "barbers", "cacheMemory", "checkCache",
             "checkFixedSize", "closure", "distribution", "filesystem", "fixedSizeMemory", "grandpa", "hotel", "lights",
             "lists", "mediaAssets", "phones", "prison", "properties", "ring", "sets", "spanning", "tree", "tube", "undirected"};
     // Put additional file names (other than Jackson's) you also want to filter on here. For each name, only one
     // model containing it will be kept. For example, "ownGrandpa".
     static String[] additional_common_file_names = {};
+    // Match the hitlist names ignoring case, e.g. "AddressBook" for "addressBook"
+    static boolean hitlist_case_insensitive = false;
+    // Match the hitlist names without their plural or verb ending, e.g. "list" for "lists"
+    static boolean hitlist_stem = false;
+    // Directory of an earlier model set made by this script to refresh incrementally, "" to build a set from scratch.
+    // Repositories still at the commit recorded in the earlier set are not cloned again, and models whose content
+    // is already in the earlier set are removed before the duplicate, multiple version, parse and hitlist filters,
+    // so the new set only holds the new and changed models.
+    static String previous_model_set = "";
+    // Seed of the random choices, like which duplicate is kept and which repositories are cloned, -1 for a new one.
+    // It is recorded in the README.md of the model set.
+    static long seed = -1;
     // You don't need to change anything after this line
 
     // static variables
-    static Random randomGenerator = new Random();
     static FileWriter readmefile;
     static String dirname;
     static HashMap<String, List<File>> alsFileNames = new HashMap<>();
@@ -78,7 +91,18 @@ public class AlloyModelSetTools {
     static int numFilesFromExisting = 0;
     static int numFilesRemoved = 0;
     static HashSet<String> files_encountered = new HashSet<>();
+    // Built once per run from jackson_model_names and additional_common_file_names
+    static AhoCorasick jacksonMatcher;
+    static AhoCorasick commonMatcher;
+    // Fingerprint -> path of every model in jackson_model_dir
+    static Map<String, String> jacksonFingerprints = new HashMap<>();
     static Logger logger;
+    static Logger parseLogger = Logging.stage("parse");
+    // Path -> {SHA-256, filter verdict} of every model seen by previous_model_set and the sets it is a delta of
+    static Map<String, String[]> previousHashes = new HashMap<>();
+    static Set<String> previousContents = new HashSet<>();
+    // Path -> SHA-256 of every model gathered, hashed before the filters remove any
+    static Map<String, String> gatheredHashes = new LinkedHashMap<>();
     // stdio is used for error output
 
 
@@ -93,16 +117,11 @@ public class AlloyModelSetTools {
             f.getParentFile().mkdirs();
             readmefile = new FileWriter(readmefilename);
             readmefile.write("Model set created: " + dirname + "\n");
+            RunSeed.set(seed);
+            readmefile.write(RunSeed.readmeLine());
 
-            // Set up logger
-            logger = Logger.getLogger("MyLog");
-            FileHandler fh;
-            // Configure the logger with handler and formatter
-            fh = new FileHandler(dirname + "/log.txt", true);
-            logger.addHandler(fh);
-            System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tc %2$s%n%4$s: %5$s%6$s%n");
-            SimpleFormatter formatter = new SimpleFormatter();
-            fh.setFormatter(formatter);
+            // Set up logger, writing one JSON object per line
+            logger = Logging.setup(dirname + "/log.jsonl");
             // Print out $machine info
             logger.info(util.getSystemInfo());
             return 0;
@@ -127,6 +146,11 @@ public class AlloyModelSetTools {
     }
 
 
+    // Path of a file of the model set relative to dirname
+    static String relativePath(File file) {
+        return Paths.get(dirname).toAbsolutePath().relativize(file.toPath().toAbsolutePath()).toString();
+    }
+
     public static void RemoveDuplicateFiles(String dirname) {
         // Get all files with duplicate names
         for (File f : new File(dirname).listFiles()) {
@@ -147,8 +171,17 @@ public class AlloyModelSetTools {
                 }
                 for (List<File> fs : fileSizes.values()) {
                     if (fs.size() > 1) {
-                        // Randomly select one to keep, and delete the other ones
-                        int index = randomGenerator.nextInt(fs.size());
+                        // Randomly select one to keep, and delete the other ones. The choice only depends on the
+                        // seed and the paths, not on the order the files were listed in.
+                        int index = 0;
+                        long best = Long.MAX_VALUE;
+                        for (int i = 0; i < fs.size(); i++) {
+                            long rank = RunSeed.rank("duplicates", relativePath(fs.get(i)));
+                            if (rank < best) {
+                                best = rank;
+                                index = i;
+                            }
+                        }
                         for (int i = 0; i < fs.size(); i++) {
                             if (i != index) {
                                 numFilesRemoved++;
@@ -222,13 +255,13 @@ public class AlloyModelSetTools {
                 // Calls  same method again.
             } else {
                 // Parse+typecheck the model
-                logger.info("=========== Parsing+Typechecking " + file.getPath() + " =============");
+                parseLogger.fine("=========== Parsing+Typechecking " + file.getPath() + " =============");
                 try {
                     Module world = CompUtil.parseEverything_fromFile(null, null, file.getPath());
 
                 } catch (Exception e) {
-                    logger.log(Level.INFO, e.getMessage(), e);
-                    logger.info(file.getPath() + " do not parse");
+                    Logging.logException(parseLogger, Level.INFO, e);
+                    parseLogger.info(file.getPath() + " do not parse");
                     numFilesRemoved++;
                     if (!file.delete()) {
                         logger.warning("Abnormal Behaviour! Something bad happened when deleting files do not parse.");
@@ -239,31 +272,56 @@ public class AlloyModelSetTools {
         }
     }
 
+    // Remove the files whose content was already seen by the previous model set, kept or removed by its filters.
+    // They are left out of the hashes file of this set, which carries over their verdict from the previous one.
+    public static void RemoveUnchangedFiles() {
+        Iterator<Map.Entry<String, String>> it = gatheredHashes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> hash = it.next();
+            if (previousContents.contains(hash.getValue())) {
+                if (!new File(dirname, hash.getKey()).delete()) {
+                    logger.warning("Abnormal Behaviour! Something bad happened when deleting unchanged files.");
+                }
+                numFilesRemoved++;
+                it.remove();
+            }
+        }
+    }
+
     public static void HitlistFilter(File[] files) {
         for (File file : files) {
             if (file.isDirectory()) {
                 HitlistFilter(file.listFiles());
             } else {
                 String fname = file.getName();
-                if (Arrays.stream(jackson_model_names).anyMatch(fname::contains)) {
+                String jackson_name = null;
+                if (fname.endsWith(".als")) {
+                    try {
+                        jackson_name = jacksonFingerprints.get(ModelFingerprint.of(util.read(file.toPath())));
+                    } catch (IOException e) {
+                        logger.info(file.getPath() + " cannot be read: " + e.getMessage());
+                    }
+                }
+                if (jackson_name == null && hitlist_by_name) jackson_name = jacksonMatcher.firstMatch(fname);
+                if (jackson_name != null) {
                     // if it is a filename in Jackson's original repo we discard this file
                     if (!file.delete()) {
                         logger.warning("Abnormal Behaviour! Something bad happened when deleting files in hitlist.");
                     }
-                    logger.info(file.getPath() + " removed by the hitlist filter");
+                    logger.info(file.getPath() + " removed by the hitlist filter, matching " + jackson_name);
                     numFilesRemoved++;
                 } else {
                     // if it is not a filename in Jackson's original repo, keep the first one we encounter and then no more of that name on the hitlist
-                    Optional<String> common_name = Arrays.stream(additional_common_file_names).filter(fname::contains).findFirst();
-                    if (common_name.isPresent()) {
-                        if (files_encountered.contains(common_name.get())) {
+                    String common_name = commonMatcher.firstMatch(fname);
+                    if (common_name != null) {
+                        if (files_encountered.contains(common_name)) {
                             if (!file.delete()) {
                                 logger.warning("Abnormal Behaviour! Something bad happened when deleting files in hitlist.");
                             }
-                            logger.info(file.getPath() + " removed by the hitlist filter");
+                            logger.info(file.getPath() + " removed by the hitlist filter, matching " + common_name);
                             numFilesRemoved++;
                         } else {
-                            files_encountered.add(common_name.get());
+                            files_encountered.add(common_name);
                         }
                     }
                 }
@@ -316,6 +374,25 @@ public class AlloyModelSetTools {
             }
         }
 
+        // Hash every gathered model before the filters, so that the hashes file also records the ones they remove
+        try {
+            util.HashFiles(dirname, gatheredHashes);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return 1;
+        }
+
+        if (!previous_model_set.isEmpty()) {
+            numFilesRemoved = 0;
+            RemoveUnchangedFiles();
+            try {
+                readmefile.write("Removed " + numFilesRemoved + " files already in " + previous_model_set + "\n");
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+                return 1;
+            }
+        }
+
         if (removeDuplicateFiles) {
             numFilesRemoved = 0;
             RemoveDuplicateFiles(dirname);
@@ -359,6 +436,21 @@ public class AlloyModelSetTools {
 
         if (hitlistFilter) {
             numFilesRemoved = 0;
+            jacksonMatcher = new AhoCorasick(Arrays.asList(jackson_model_names), hitlist_case_insensitive, hitlist_stem);
+            commonMatcher = new AhoCorasick(Arrays.asList(additional_common_file_names), hitlist_case_insensitive,
+                    hitlist_stem);
+            try {
+                jacksonFingerprints = ModelFingerprint.index(new File("model-sets/" + jackson_model_dir));
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+                return 1;
+            }
+            if (jacksonFingerprints.isEmpty()) {
+                // Every copy of Jackson's models would be kept
+                logger.severe("No models found in " + new File("model-sets/" + jackson_model_dir).getAbsolutePath()
+                        + " to filter on, run the script from the root of the alloy-model-sets directory");
+                return 1;
+            }
             for (File f : new File(dirname).listFiles()) {
                 // Skip the directory containing jackson's original models
                 if (f.isDirectory()) {
@@ -367,7 +459,7 @@ public class AlloyModelSetTools {
             }
 
             try {
-                readmefile.write("Removed " + numFilesRemoved + " files whose name is in hitlist." + "\n");
+                readmefile.write("Removed " + numFilesRemoved + " files that are in hitlist." + "\n");
             } catch (Exception e) {
                 logger.log(Level.SEVERE, e.getMessage(), e);
                 return 1;
@@ -449,9 +541,24 @@ public class AlloyModelSetTools {
             return;
         }
 
+        Map<String, String> known_commits = new HashMap<>();
+        if (!previous_model_set.isEmpty()) {
+            try {
+                for (String[] repository : util.ReadRepositories(previous_model_set).values()) {
+                    known_commits.put(repository[0], repository[1]);
+                }
+                previousHashes = util.ReadFileHashes(previous_model_set);
+                for (String[] hash : previousHashes.values()) previousContents.add(hash[0]);
+                readmefile.write("Delta of " + previous_model_set + ": only new and changed models are kept.\n");
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+                return;
+            }
+        }
+
         if (gatherFromGithub) {
             // Gather from github
-            if (util.GatherFromGithub(num_git_repos, logger, dirname, readmefile) == 1) {
+            if (util.GatherFromGithub(num_git_repos, logger, dirname, readmefile, known_commits) == 1) {
                 logger.warning("Failed to gather models from github");
                 return;
             }
@@ -488,6 +595,11 @@ public class AlloyModelSetTools {
 
         printNumOfFiles();
 
+        if (util.WriteFileHashes(dirname, gatheredHashes, previousHashes, logger) == 1) {
+            logger.warning("Failed to write the hashes of the models");
+        }
+
+        logger.info(Logging.summary(numAlsFiles));
         try {
             readmefile.close();
         } catch (Exception e) {
@@ -0,0 +1,219 @@
+package alloymodelsettools;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Runs the commands of a model set extracted by ExtractModels again, to compare Alloy versions, solvers or JVM flags
+// on the same models. Every recorded command runs warmup_runs + repetitions times, each run in a new RunCommand
+// process, and its median time, interquartile range and drift against the time recorded by ExtractModels are written
+// to <dirname>/benchmarks/<label>.csv. With compare_with set, the run is also compared with an earlier run of the
+// same model set.
+public class BenchmarkModelSet {
+    // Users set these options.
+    // Model set directory with the model_summary.csv and commandScopes.csv written by ExtractModels
+    static String dirname = "model-sets/placeholder";
+    // Name of this run, like "alloy-5.1-sat4j"
+    static String label = "baseline";
+    // Name of an earlier run of the same model set to compare with, "" for none
+    static String compare_with = "";
+    // Runs per command whose times are discarded
+    static int warmup_runs = 1;
+    // Runs per command whose times are measured
+    static int repetitions = 5;
+    // A run is killed after this long
+    static long timeout_in_seconds = 30 * 60;
+    // Arguments of the worker JVMs, e.g. "-Dcatalyst.solver=minisat(jni)" to run with another solver
+    static String[] jvm_args = {"-Xmx4096m", "-Xss16m"};
+    // Class path of the worker JVMs, like a fat jar built with another Alloy version, "" for this one
+    static String worker_classpath = "";
+    // Medians of two runs differing by less than this fraction, or with overlapping interquartile ranges, are
+    // reported as the same
+    static double min_relative_change = 0.05;
+    // You don't need to change anything after this line
+
+    // static variables
+    static Logger logger;
+    static String benchmarks_dir;
+
+    static class Measurement {
+        String satisfiable = "";
+        List<Long> times = new ArrayList<>();
+        // Runs without a result, like timeouts and exceptions
+        int failures = 0;
+    }
+
+    // The p-quantile of sorted values, interpolating between the closest ranks
+    static double quantile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return Double.NaN;
+        double rank = p * (sorted.size() - 1);
+        int lower = (int) Math.floor(rank);
+        int upper = (int) Math.ceil(rank);
+        return sorted.get(lower) + (rank - lower) * (sorted.get(upper) - sorted.get(lower));
+    }
+
+    // Time in seconds recorded by ExtractModels for every file of the model set, by file path relative to dirname
+    static Map<String, Double> recordedTimes() throws Exception {
+        Map<String, Double> times = new HashMap<>();
+        try (Reader in = new FileReader(dirname + "/commandScopes.csv")) {
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                String path = record.get("File Path");
+                // The header is printed again every time the csv file is appended to
+                if (path.equals("File Path") || record.get("Time").isEmpty()) continue;
+                String[] relative = path.split(dirname + "/", 2);
+                times.put(relative.length == 2 ? relative[1] : path, Double.parseDouble(record.get("Time")));
+            }
+        }
+        return times;
+    }
+
+    // Runs the only command of the file, which is the one ExtractModels wrote, in a new process.
+    static ProbeRecord run(File file) throws Exception {
+        ProbeSupervisor.ProbeOutput output = ProbeSupervisor.launch(RunCommand.class,
+                worker_classpath.isEmpty() ? System.getProperty("java.class.path") : worker_classpath,
+                Arrays.asList(jvm_args), Arrays.asList(file.getPath(), "0", "-1"), timeout_in_seconds, null).join();
+        if (output.timedOut) return null;
+        return ProbeRecord.read(output.stdout);
+    }
+
+    static Measurement measure(File file) throws Exception {
+        Measurement measurement = new Measurement();
+        for (int n = 0; n < warmup_runs + repetitions; n++) {
+            ProbeRecord record = run(file);
+            if (n < warmup_runs) continue;
+            if (record == null || record.outcome == ProbeRecord.Outcome.EXCEPTION) {
+                logger.info(file.getPath() + ": " + (record == null ? "timeout or no result" : record.toString()));
+                measurement.failures++;
+            } else {
+                measurement.satisfiable = record.outcome.name();
+                measurement.times.add(record.executionTime);
+            }
+        }
+        Collections.sort(measurement.times);
+        return measurement;
+    }
+
+    static Integer benchmark() {
+        try (Reader in = new FileReader(dirname + "/model_summary.csv");
+             CSVPrinter out = new CSVPrinter(new FileWriter(benchmarks_dir + "/" + label + ".csv"),
+                     CSVFormat.DEFAULT.withHeader("File Path", "Satisfiable?", "Recorded Satisfiable?",
+                             "Recorded Time", "Runs", "Failures", "Median Time", "Q1 Time", "Q3 Time", "Drift"))) {
+            Map<String, Double> recorded = recordedTimes();
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                String path = record.get("File Path");
+                if (path.equals("File Path")) continue;
+                File file = new File(dirname + "/" + path);
+                if (!file.exists()) {
+                    logger.warning(file.getPath() + " not found");
+                    continue;
+                }
+                Measurement m = measure(file);
+                double median = quantile(m.times, 0.5) / 1e9;
+                Double recordedTime = recorded.get(path);
+                // Relative change of the median against the time recorded when the model set was extracted
+                String drift = recordedTime == null || m.times.isEmpty() ? ""
+                        : String.format("%.3f", (median - recordedTime) / recordedTime);
+                out.printRecord(path, m.satisfiable, record.get("Satisfiable?"),
+                        recordedTime == null ? "" : String.format("%.2f", recordedTime), m.times.size(), m.failures,
+                        m.times.isEmpty() ? "" : String.format("%.3f", median),
+                        m.times.isEmpty() ? "" : String.format("%.3f", quantile(m.times, 0.25) / 1e9),
+                        m.times.isEmpty() ? "" : String.format("%.3f", quantile(m.times, 0.75) / 1e9), drift);
+                out.flush();
+                if (!m.satisfiable.isEmpty() && !m.satisfiable.equals(record.get("Satisfiable?"))) {
+                    logger.warning(path + " is " + m.satisfiable + " but was recorded " + record.get("Satisfiable?"));
+                }
+                logger.info(path + ": median " + median + "s, drift " + drift);
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return 1;
+        }
+        return 0;
+    }
+
+    static Map<String, CSVRecord> readRun(String run_label) throws Exception {
+        Map<String, CSVRecord> records = new LinkedHashMap<>();
+        try (Reader in = new FileReader(benchmarks_dir + "/" + run_label + ".csv")) {
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                if (!record.get("Median Time").isEmpty()) records.put(record.get("File Path"), record);
+            }
+        }
+        return records;
+    }
+
+    // Writes <compare_with>-vs-<label>.csv with the ratio of the medians of every model measured by both runs, and
+    // logs the geometric mean of the ratios and how many models got faster or slower.
+    static Integer compare() {
+        String report = benchmarks_dir + "/" + compare_with + "-vs-" + label + ".csv";
+        try (CSVPrinter out = new CSVPrinter(new FileWriter(report), CSVFormat.DEFAULT.withHeader("File Path",
+                compare_with + " Median Time", label + " Median Time", "Ratio", "Change"))) {
+            Map<String, CSVRecord> before = readRun(compare_with);
+            Map<String, CSVRecord> after = readRun(label);
+            double logRatios = 0;
+            int compared = 0;
+            int faster = 0;
+            int slower = 0;
+            for (Map.Entry<String, CSVRecord> entry : before.entrySet()) {
+                CSVRecord b = entry.getValue();
+                CSVRecord a = after.get(entry.getKey());
+                if (a == null) continue;
+                double medianBefore = Double.parseDouble(b.get("Median Time"));
+                double medianAfter = Double.parseDouble(a.get("Median Time"));
+                double ratio = medianAfter / medianBefore;
+                String change = "same";
+                if (Math.abs(ratio - 1) >= min_relative_change) {
+                    if (Double.parseDouble(a.get("Q3 Time")) < Double.parseDouble(b.get("Q1 Time"))) {
+                        change = "faster";
+                        faster++;
+                    } else if (Double.parseDouble(a.get("Q1 Time")) > Double.parseDouble(b.get("Q3 Time"))) {
+                        change = "slower";
+                        slower++;
+                    }
+                }
+                out.printRecord(entry.getKey(), b.get("Median Time"), a.get("Median Time"),
+                        String.format("%.3f", ratio), change);
+                logRatios += Math.log(ratio);
+                compared++;
+            }
+            String summary = String.format("%s vs %s: %d models compared, geometric mean ratio %.3f, %d faster, "
+                            + "%d slower", compare_with, label, compared,
+                    compared == 0 ? 1 : Math.exp(logRatios / compared), faster, slower);
+            System.out.println(summary);
+            logger.info(summary);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return 1;
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        try {
+            benchmarks_dir = dirname + "/benchmarks";
+            new File(benchmarks_dir).mkdirs();
+            logger = Logging.setup(benchmarks_dir + "/log.jsonl");
+            logger.info(util.getSystemInfo());
+        } catch (Exception e) {
+            System.err.println("Failed to set up the logger: " + e.getMessage());
+            return;
+        }
+
+        if (benchmark() == 1) {
+            logger.warning("Failed to benchmark " + dirname);
+            return;
+        }
+        if (!compare_with.isEmpty() && compare() == 1) {
+            logger.warning("Failed to compare " + label + " with " + compare_with);
+        }
+        logger.info("Completed!");
+        logger.info(Logging.summary(0));
+    }
+}
@@ -0,0 +1,113 @@
+package alloymodelsettools;
+
+import edu.mit.csail.sdg.alloy4.Pos;
+import edu.mit.csail.sdg.ast.Command;
+import edu.mit.csail.sdg.ast.Module;
+import edu.mit.csail.sdg.ast.Sig;
+import edu.mit.csail.sdg.parser.CompUtil;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.StreamSupport;
+
+// Writes the command a scope was found for back into its model. The command is found at the position the Alloy
+// parser recorded for it (Command.pos), and only its scope clause is replaced, so its label and its name or block
+// are kept as written. Comments and every other command are removed.
+public class CommandEditor {
+    // Words a scope clause starts with
+    static final Set<String> SCOPE_WORDS = new HashSet<>(Arrays.asList("for", "expect"));
+
+    public static class Edit {
+        // The new model
+        public final String content;
+        // The new command as written in the model
+        public final String command;
+
+        public Edit(String content, String command) {
+            this.content = content;
+            this.command = command;
+        }
+    }
+
+    // Offset in source of the 1-based line and column of pos, -1 if pos is not in source
+    static int offset(String source, Pos pos) {
+        if (pos == null || pos.y < 1 || pos.x < 1) return -1;
+        int offset = 0;
+        for (int line = 1; line < pos.y; line++) {
+            offset = source.indexOf('\n', offset) + 1;
+            if (offset == 0) return -1;
+        }
+        offset += pos.x - 1;
+        return offset < source.length() ? offset : -1;
+    }
+
+    // The " for ... expect ..." part of the command as Command.toString prints it, "" if the command has no scope
+    static String scopeClause(Command command) {
+        String s = command.toString();
+        int start = s.indexOf(" for ");
+        if (start < 0) start = s.indexOf(" expect ");
+        return start < 0 ? "" : s.substring(start);
+    }
+
+    // Replaces the scope clause of the original command, the which-th command of source, with the scope clause of
+    // new_command. Returns null if the command cannot be found in source.
+    static Edit inPlace(String source, Command original, int which, Command new_command) {
+        AlloyLexer.Stripped stripped = AlloyLexer.strip(source);
+        int k = stripped.commandAt(offset(source, original.pos));
+        if (k < 0) {
+            // The position is unknown, fall back on the order of the commands
+            if (which >= stripped.commands.size()) return null;
+            k = which;
+        }
+        String text = stripped.command(k);
+        int clause = AlloyLexer.indexOfWord(text, SCOPE_WORDS);
+        String head = (clause < 0 ? text : text.substring(0, clause)).trim();
+        if (head.isEmpty()) return null;
+        String command = head + scopeClause(new_command);
+        return new Edit(stripped.replaceCommands(k, command), command);
+    }
+
+    // Appends new_command, as Command.toString prints it, to source without comments and commands. The command's
+    // name or block is guessed from the which-th command of source. This is what is written when the command cannot
+    // be rewritten in place.
+    static Edit appended(String source, int which, Command new_command, Iterable<Sig> sigs) {
+        AlloyLexer.Stripped stripped = AlloyLexer.strip(source);
+        // Extract the Expression of the i-th command to be used later
+        String nameExpr = "";
+        String ith_command = stripped.command(which);
+        if (ith_command.contains("{")) {
+            nameExpr = ith_command.substring(ith_command.indexOf("{"), ith_command.lastIndexOf("}") + 1);
+        }
+        String command_str = new_command.toString();
+        // Replace Check and Run with lowercase letters
+        if (command_str.contains("Check ")) {
+            command_str = command_str.replaceFirst("Check", "check");
+        } else if (command_str.contains("Run ")) {
+            command_str = command_str.replaceFirst("Run", "run");
+        }
+        if (!nameExpr.isEmpty()) {
+            command_str = command_str.replace(" " + new_command.label + " ", " " + nameExpr + " ");
+        } else {
+            // For special case:  command_name: check pred_name for 5
+            // We want to use pred_name not command_name here
+            if (StreamSupport.stream(sigs.spliterator(), false).map(x -> x.label)
+                    .noneMatch(str -> str.contains(new_command.label))) {
+                command_str = command_str.replace(" " + new_command.label + " ", " " + new_command.nameExpr + " ");
+            }
+        }
+        return new Edit(stripped.withCommand(command_str), command_str);
+    }
+
+    // Whether the model at path parses and has a single command with the scope of new_command
+    static boolean validate(String path, Command new_command) {
+        try {
+            Module world = CompUtil.parseEverything_fromFile(null, null, path);
+            List<Command> commands = world.getAllCommands();
+            return commands.size() == 1 && scopeClause(commands.get(0)).equals(scopeClause(new_command));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package alloymodelsettools;
+
+import edu.mit.csail.sdg.alloy4.Pair;
+import edu.mit.csail.sdg.ast.*;
+import edu.mit.csail.sdg.ast.Module;
+import edu.mit.csail.sdg.parser.CompUtil;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Predicts how likely it is to find a scope in the desired time range for a model, and which scope, from cheap
+// static features of the parsed model. The predictor is a k-nearest-neighbours model fitted on the probe history,
+// i.e. the commandScopes.csv files written by earlier ExtractModels runs.
+public class DifficultyPredictor {
+    static final String[] FEATURE_NAMES = {"sigs", "fields", "max field arity", "max quantifier depth",
+            "closures", "uses integers", "uses ordering", "commands", "log primary vars", "log clauses"};
+    // Number of neighbours a prediction is made from
+    static int k = 5;
+    // Overall scope the commands are translated at to count Kodkod variables and clauses
+    static int probe_scope = 3;
+    // Only the first few commands of a file are translated
+    static int max_commands_translated = 3;
+    // Features of the files seen by earlier runs, by SHA-256 of the file, so that a file is only translated once
+    static String feature_cache = "model-sets/predictor_features.csv";
+
+    public static class Prediction {
+        public final double successProbability;
+        // -1 if no neighbour found a scope in range
+        public final int scope;
+
+        public Prediction(double successProbability, int scope) {
+            this.successProbability = successProbability;
+            this.scope = scope;
+        }
+    }
+
+    // Walks a formula and records the deepest nesting of quantifiers, the number of transitive closures and
+    // whether integers are used.
+    static class FormulaFeatures extends VisitQuery<Object> {
+        int depth = 0;
+        int maxDepth = 0;
+        int closures = 0;
+        boolean usesIntegers = false;
+
+        @Override
+        public Object visit(ExprQt x) {
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+            super.visit(x);
+            depth--;
+            return null;
+        }
+
+        @Override
+        public Object visit(ExprUnary x) {
+            if (x.op == ExprUnary.Op.CLOSURE || x.op == ExprUnary.Op.RCLOSURE) {
+                closures++;
+            } else if (x.op == ExprUnary.Op.CAST2INT || x.op == ExprUnary.Op.CAST2SIGINT) {
+                usesIntegers = true;
+            }
+            return super.visit(x);
+        }
+
+        @Override
+        public Object visit(ExprConstant x) {
+            if (x.op == ExprConstant.Op.NUMBER) usesIntegers = true;
+            return super.visit(x);
+        }
+    }
+
+    static final Logger logger = Logger.getLogger("MyLog");
+    static final List<double[]> trainingFeatures = new ArrayList<>();
+    // 1 if a scope in range was found, 0 otherwise
+    static final List<Integer> trainingOutcomes = new ArrayList<>();
+    // Scope found, -1 if none
+    static final List<Integer> trainingScopes = new ArrayList<>();
+    static double[] means;
+    static double[] deviations;
+    // "<SHA-256>:<probe_scope>:<max_commands_translated>" -> features, read from feature_cache
+    static Map<String, double[]> cache;
+
+    static String cacheKey(String sha256) {
+        return sha256 + ":" + probe_scope + ":" + max_commands_translated;
+    }
+
+    static void loadCache() {
+        cache = new HashMap<>();
+        if (!new File(feature_cache).exists()) return;
+        try (Reader in = new FileReader(feature_cache)) {
+            for (CSVRecord record : CSVFormat.DEFAULT.parse(in)) {
+                if (record.size() != FEATURE_NAMES.length + 1) continue;
+                double[] f = new double[FEATURE_NAMES.length];
+                for (int j = 0; j < f.length; j++) f[j] = Double.parseDouble(record.get(j + 1));
+                cache.put(record.get(0), f);
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // Returns the features of the als files by path, leaving out files that do not parse. Features of files seen
+    // before come from feature_cache. The other files are parsed one after the other, and their commands translated
+    // num_workers at a time by translate-only RunCommand processes, so that a model Kodkod cannot translate does not
+    // hang or kill this JVM.
+    static Map<String, double[]> features(Collection<String> paths) {
+        if (cache == null) loadCache();
+        Map<String, double[]> features = new HashMap<>();
+        // Path -> cache key and translations of the files not in the cache
+        Map<String, String> keys = new LinkedHashMap<>();
+        Map<String, List<Future<RunCommand.TranslationStats>>> translations = new HashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, ExtractModels.num_workers));
+        try {
+            for (String path : paths) {
+                String key;
+                Module world;
+                try {
+                    key = cacheKey(util.sha256(Paths.get(path)));
+                    if (cache.containsKey(key)) {
+                        features.put(path, cache.get(key));
+                        continue;
+                    }
+                    world = CompUtil.parseEverything_fromFile(null, null, path);
+                } catch (Exception e) {
+                    Logging.logException(logger, Level.INFO, e);
+                    continue;
+                }
+                features.put(path, features(world));
+                keys.put(path, key);
+                List<Future<RunCommand.TranslationStats>> stats = new ArrayList<>();
+                for (int i = 0; i < Math.min(world.getAllCommands().size(), max_commands_translated); i++) {
+                    int command = i;
+                    stats.add(pool.submit(() -> ExtractModels.translateCommand(path, command, probe_scope,
+                            RunCommand.ScopeStrategy.OVERALL)));
+                }
+                translations.put(path, stats);
+            }
+            try (CSVPrinter out = new CSVPrinter(new FileWriter(feature_cache, true), CSVFormat.DEFAULT)) {
+                for (Map.Entry<String, String> entry : keys.entrySet()) {
+                    double[] f = features.get(entry.getKey());
+                    int primaryVars = 0;
+                    int clauses = 0;
+                    for (Future<RunCommand.TranslationStats> translation : translations.get(entry.getKey())) {
+                        RunCommand.TranslationStats stats = translation.get();
+                        // A command that cannot be translated even at a small scope tells nothing about its size
+                        if (stats == null) continue;
+                        primaryVars = Math.max(primaryVars, stats.primaryVars);
+                        clauses = Math.max(clauses, stats.clauses);
+                    }
+                    f[8] = Math.log1p(primaryVars);
+                    f[9] = Math.log1p(clauses);
+                    cache.put(entry.getValue(), f);
+                    List<Object> record = new ArrayList<>(Collections.singletonList(entry.getValue()));
+                    for (double x : f) record.add(x);
+                    out.printRecord(record);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return features;
+    }
+
+    // Features of the parsed model, without the sizes of its translated commands
+    static double[] features(Module world) {
+        double[] f = new double[FEATURE_NAMES.length];
+        int fields = 0;
+        int maxArity = 0;
+        for (Sig sig : world.getAllReachableUserDefinedSigs()) {
+            for (Sig.Field field : sig.getFields()) {
+                fields++;
+                maxArity = Math.max(maxArity, field.type().arity());
+            }
+        }
+        FormulaFeatures formulas = new FormulaFeatures();
+        world.getAllReachableFacts().accept(formulas);
+        for (Func func : world.getAllFunc()) {
+            func.getBody().accept(formulas);
+        }
+        for (Pair<String, Expr> assertion : world.getAllAssertions()) {
+            assertion.b.accept(formulas);
+        }
+        boolean usesOrdering = false;
+        for (String filename : world.getAllReachableModulesFilenames()) {
+            if (Paths.get(filename).endsWith(Paths.get("util", "ordering.als"))) usesOrdering = true;
+        }
+        List<Command> commands = world.getAllCommands();
+        f[0] = world.getAllReachableUserDefinedSigs().size();
+        f[1] = fields;
+        f[2] = maxArity;
+        f[3] = formulas.maxDepth;
+        f[4] = formulas.closures;
+        f[5] = formulas.usesIntegers ? 1 : 0;
+        f[6] = usesOrdering ? 1 : 0;
+        f[7] = commands.size();
+        return f;
+    }
+
+    // Fits the predictor on the records of the given commandScopes.csv files. A file counts as a success if any of
+    // its records has a scope, or was discarded because its quota was met, which means a scope in range was found.
+    // Files that no longer exist or parse are skipped. Returns the number of training files.
+    static int fit(List<String> historyFiles) {
+        // File path -> found scope, -1 if none
+        Map<String, Integer> outcomes = new LinkedHashMap<>();
+        Set<String> successes = new HashSet<>();
+        for (String historyFile : historyFiles) {
+            if (!new File(historyFile).exists()) continue;
+            try (Reader in = new FileReader(historyFile)) {
+                for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                    String path = record.get("File Path");
+                    // The header is printed again every time the csv file is appended to
+                    if (path.equals("File Path")) continue;
+                    String scope = record.get("Overall Scope");
+                    // A failure record holds its reason in this column
+                    String reason = record.get("Satisfiable?");
+                    if (!scope.isEmpty()) {
+                        outcomes.put(path, Integer.parseInt(scope));
+                        successes.add(path);
+                    } else {
+                        outcomes.putIfAbsent(path, -1);
+                        if (reason.equals("Enough sat models") || reason.equals("Enough unsat models")) {
+                            successes.add(path);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        trainingFeatures.clear();
+        trainingOutcomes.clear();
+        trainingScopes.clear();
+        List<String> existing = new ArrayList<>();
+        for (String path : outcomes.keySet()) {
+            if (new File(path).exists()) existing.add(path);
+        }
+        Map<String, double[]> features = features(existing);
+        for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+            double[] f = features.get(outcome.getKey());
+            if (f == null) continue;
+            trainingFeatures.add(f);
+            trainingOutcomes.add(successes.contains(outcome.getKey()) ? 1 : 0);
+            trainingScopes.add(outcome.getValue());
+        }
+        // Standardize every feature so that no feature dominates the distance
+        means = new double[FEATURE_NAMES.length];
+        deviations = new double[FEATURE_NAMES.length];
+        for (int j = 0; j < FEATURE_NAMES.length; j++) {
+            for (double[] f : trainingFeatures) means[j] += f[j] / trainingFeatures.size();
+            for (double[] f : trainingFeatures) {
+                deviations[j] += (f[j] - means[j]) * (f[j] - means[j]) / trainingFeatures.size();
+            }
+            deviations[j] = deviations[j] > 0 ? Math.sqrt(deviations[j]) : 1;
+        }
+        return trainingFeatures.size();
+    }
+
+    static double distance(double[] a, double[] b) {
+        double d = 0;
+        for (int j = 0; j < a.length; j++) {
+            double diff = (a[j] - b[j]) / deviations[j];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    // Predicts from the k nearest training files. The predicted scope is the median scope found by the
+    // neighbours that found one.
+    static Prediction predict(double[] f) {
+        if (trainingFeatures.isEmpty()) return new Prediction(0.5, -1);
+        Integer[] order = new Integer[trainingFeatures.size()];
+        for (int n = 0; n < order.length; n++) order[n] = n;
+        Arrays.sort(order, Comparator.comparingDouble(n -> distance(f, trainingFeatures.get(n))));
+        int neighbours = Math.min(k, order.length);
+        int successes = 0;
+        List<Integer> scopes = new ArrayList<>();
+        for (int n = 0; n < neighbours; n++) {
+            successes += trainingOutcomes.get(order[n]);
+            if (trainingScopes.get(order[n]) != -1) scopes.add(trainingScopes.get(order[n]));
+        }
+        Collections.sort(scopes);
+        return new Prediction((double) successes / neighbours, scopes.isEmpty() ? -1 : scopes.get(scopes.size() / 2));
+    }
+
+    // Sorts the files by decreasing predicted probability of finding a scope in range, keeping the current order
+    // between files with the same probability, and returns the prediction of every file.
+    static Map<String, Prediction> rank(List<String> file_names) {
+        Map<String, Prediction> predictions = new HashMap<>();
+        Map<String, double[]> features = features(file_names);
+        for (String path : file_names) {
+            double[] f = features.get(path);
+            predictions.put(path, f == null ? new Prediction(0, -1) : predict(f));
+        }
+        file_names.sort(Comparator.comparingDouble(path -> -predictions.get(path).successProbability));
+        return predictions;
+    }
+}
@@ -0,0 +1,271 @@
+package alloymodelsettools;
+
+import alloymodelsettools.ExtractModels.Choice;
+import alloymodelsettools.ExtractModels.Found;
+import alloymodelsettools.ExtractModels.Result;
+import alloymodelsettools.ExtractModels.Status;
+import alloymodelsettools.RunCommand.ScopeStrategy;
+import edu.mit.csail.sdg.ast.Command;
+import edu.mit.csail.sdg.ast.Module;
+import edu.mit.csail.sdg.parser.CompUtil;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Distributed mode of ExtractModels. The coordinator owns the list of files, the quotas and the journal
+// (commandScopes.csv, the SAT and UNSAT lists, model_summary.csv and the rewritten models). ExtractWorker processes,
+// on this host or others, lease one file at a time over TCP, search a scope for its command with their own RunCommand
+// processes, and stream their probe results back. Every worker has its own copy of the model set, checked against
+// the coordinator's by the SHA-256 of every leased file. A lease that hears nothing from its worker for
+// lease_seconds expires, and its file is leased again. The coordinator chooses the command, puts off files for
+// quota_aware and leases the files put off once every other file is done, like a run in one process.
+//
+// Every message is one line of tab-separated fields, and every request of a worker gets one answer:
+//   LEASE                                               -> FILE <lease> <path> <i-th command> <sha256>
+//                                                          <predicted scope, -1 if none>, WAIT <seconds> or DONE
+//   PROBE <lease> <scope> <status> <ns> <satisfiable>   -> OK <num_sat> <num_unsat> or EXPIRED
+//   FAILURE <lease> <reason>                            -> OK <num_sat> <num_unsat> or EXPIRED
+//   FOUND <lease> <scope> <strategy> <ns> <satisfiable> -> OK <num_sat> <num_unsat> or EXPIRED
+//   RENEW <lease>                                       -> OK <num_sat> <num_unsat> or EXPIRED
+//   END <lease>                                         -> OK <num_sat> <num_unsat>
+// Paths are relative to the model set directory. FOUND and END end the lease. RENEW is the heartbeat a worker
+// sends while it searches, since translate-only probes and long probes report nothing for a while.
+public class ExtractCoordinator {
+    // Seconds a worker waits before asking again when every file left is leased
+    static final int WAIT_SECONDS = 5;
+
+    static class Lease {
+        final long id;
+        final String path;
+        final Choice choice;
+        // System.nanoTime() after which the lease expires
+        long deadline;
+
+        Lease(long id, String path, Choice choice) {
+            this.id = id;
+            this.path = path;
+            this.choice = choice;
+            renew();
+        }
+
+        void renew() {
+            deadline = System.nanoTime() + ExtractModels.lease_seconds * 1000000000L;
+        }
+    }
+
+    static Logger logger;
+    static final Deque<String> pending = new ArrayDeque<>();
+    static final Map<Long, Lease> leases = new HashMap<>();
+    static long next_lease = 1;
+    // Files of expired leases -> their command, so that they are not parsed, counted or put off again
+    static final Map<String, Choice> released = new HashMap<>();
+    // Number of files lease is choosing a command of without the lock
+    static int choosing = 0;
+    // Set once the run is over, after which no message changes the journal
+    static boolean closed = false;
+
+    static boolean quotasMet() {
+        return ExtractModels.num_sat >= ExtractModels.num_sat_wanted
+                && ExtractModels.num_unsat >= ExtractModels.num_unsat_wanted;
+    }
+
+    static synchronized boolean finished() {
+        return quotasMet() || (pending.isEmpty() && leases.isEmpty() && choosing == 0
+                && (!ExtractModels.deferring || ExtractModels.deferred.isEmpty()));
+    }
+
+    static String quotas() {
+        return "OK\t" + ExtractModels.num_sat + "\t" + ExtractModels.num_unsat;
+    }
+
+    // Puts the files of expired leases back at the front of the pending files
+    static synchronized void expireLeases() {
+        long now = System.nanoTime();
+        Iterator<Lease> it = leases.values().iterator();
+        while (it.hasNext()) {
+            Lease lease = it.next();
+            if (now - lease.deadline > 0) {
+                logger.warning("Lease " + lease.id + " of " + lease.path + " expired");
+                Metrics.inc("extract_leases_expired_total");
+                pending.addFirst(lease.path);
+                released.put(lease.path, lease.choice);
+                it.remove();
+            }
+        }
+    }
+
+    // Parses the file and chooses its command, or returns null if it is not worth leasing or is put off by
+    // quota_aware. Runs without the lock, so that parsing and the prior probe of shouldDefer do not hold up the
+    // other workers; the command is chosen with the lock held, since it may write a failure record.
+    static Choice choose(File file) {
+        try {
+            if (!file.exists()) return null;
+            Module world = CompUtil.parseEverything_fromFile(null, null, file.getPath());
+            Choice choice;
+            synchronized (ExtractCoordinator.class) {
+                if (closed) return null;
+                choice = ExtractModels.choose(file, world);
+            }
+            if (choice != null && ExtractModels.quota_aware && ExtractModels.deferring
+                    && ExtractModels.shouldDefer(file.getPath(), choice.i)) {
+                return null;
+            }
+            return choice;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    static String lease() {
+        while (true) {
+            String path;
+            Choice choice;
+            synchronized (ExtractCoordinator.class) {
+                if (closed || quotasMet()) return "DONE";
+                if (pending.isEmpty() && ExtractModels.deferring && leases.isEmpty() && choosing == 0) {
+                    // Every other file is done, the files put off by quota_aware are next
+                    ExtractModels.deferring = false;
+                    pending.addAll(ExtractModels.putOff());
+                }
+                if (pending.isEmpty()) {
+                    return leases.isEmpty() && choosing == 0 ? "DONE" : "WAIT\t" + WAIT_SECONDS;
+                }
+                path = pending.poll();
+                choice = released.remove(path);
+                if (choice == null && ExtractModels.deferring && new File(path).exists()) {
+                    // Counted once, like a run in one process, which does not count the files put off either
+                    ExtractModels.num_files_processed++;
+                    Metrics.inc("extract_files_processed_total");
+                }
+                choosing++;
+            }
+            File file = new File(path);
+            String sha256 = null;
+            if (choice == null) choice = choose(file);
+            try {
+                if (choice != null) sha256 = util.sha256(file.toPath());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+            synchronized (ExtractCoordinator.class) {
+                choosing--;
+                if (closed) return "DONE";
+                if (sha256 == null) continue;
+                Lease lease = new Lease(next_lease++, path, choice);
+                leases.put(lease.id, lease);
+                logger.info("LEASE " + lease.id + ", " + path);
+                String relative = path.startsWith(ExtractModels.dirname + "/")
+                        ? path.substring(ExtractModels.dirname.length() + 1) : path;
+                return String.join("\t", "FILE", String.valueOf(lease.id), relative, String.valueOf(choice.i),
+                        sha256, String.valueOf(ExtractModels.predictedScope(path)));
+            }
+        }
+    }
+
+    // Answers one request of a worker. A lease is answered without the lock, see lease.
+    static String answer(String[] request) throws IOException {
+        if (request[0].equals("LEASE")) return lease();
+        return report(request);
+    }
+
+    static synchronized String report(String[] request) throws IOException {
+        Lease lease = leases.get(Long.parseLong(request[1]));
+        if (lease == null || closed) return request[0].equals("END") ? quotas() : "EXPIRED";
+        lease.renew();
+        switch (request[0]) {
+            case "PROBE":
+                ExtractModels.probeLogger.info("Lease " + lease.id + " scope " + request[2] + ": " + request[3]
+                        + " " + request[5]);
+                Metrics.inc("extract_probes_total", "status", request[3]);
+                Metrics.observe("extract_probe_duration_seconds", ExtractModels.PROBE_DURATION_BUCKETS,
+                        Long.parseLong(request[4]) / 1e9);
+                ExtractModels.solver_time_ns.addAndGet(Long.parseLong(request[4]));
+                return quotas();
+            case "RENEW":
+                return quotas();
+            case "FAILURE":
+                ExtractModels.csvFailureRecord(lease.path, lease.choice.i, lease.choice.command, request[2]);
+                return quotas();
+            case "FOUND":
+                leases.remove(lease.id);
+                found(lease, Integer.parseInt(request[2]), ScopeStrategy.valueOf(request[3]),
+                        Long.parseLong(request[4]), request[5]);
+                return quotas();
+            case "END":
+                leases.remove(lease.id);
+                return quotas();
+            default:
+                throw new IOException("Unknown request " + request[0]);
+        }
+    }
+
+    // Records the scope found by a worker, unless its quota was met in the meantime
+    static void found(Lease lease, int scope, ScopeStrategy strategy, long time, String satisfiable)
+            throws IOException {
+        Choice choice = lease.choice;
+        if (satisfiable.equals("SAT") && ExtractModels.num_sat >= ExtractModels.num_sat_wanted) {
+            ExtractModels.csvFailureRecord(lease.path, choice.i, choice.command, "Enough sat models");
+            return;
+        } else if (satisfiable.equals("UNSAT") && ExtractModels.num_unsat >= ExtractModels.num_unsat_wanted) {
+            ExtractModels.csvFailureRecord(lease.path, choice.i, choice.command, "Enough unsat models");
+            return;
+        }
+        Command scoped_command = RunCommand.changeScope(choice.command, choice.world.getAllReachableSigs(), scope,
+                strategy);
+        ExtractModels.record(new File(lease.path), choice, new Found(scope, strategy, scoped_command,
+                new Result(Status.SUCCESS, time, satisfiable)));
+    }
+
+    static void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                     StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8),
+                     true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.println(answer(line.split("\t", -1)));
+            }
+        } catch (Exception e) {
+            // The worker is gone, its lease expires
+            logger.info("Worker " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+        }
+    }
+
+    // Leases the files to the workers connecting to coordinator_address:coordinator_port until the quotas are met or
+    // every file is searched
+    static void run(List<String> files) throws IOException {
+        logger = ExtractModels.logger;
+        synchronized (ExtractCoordinator.class) {
+            pending.addAll(files);
+        }
+        try (ServerSocket server = new ServerSocket(ExtractModels.coordinator_port, 50,
+                InetAddress.getByName(ExtractModels.coordinator_address))) {
+            server.setSoTimeout(1000);
+            logger.info("Coordinating workers on " + server.getLocalSocketAddress());
+            while (!finished()) {
+                try {
+                    Socket socket = server.accept();
+                    logger.info("Worker connected from " + socket.getRemoteSocketAddress());
+                    Thread t = new Thread(() -> serve(socket), "extract-coordinator");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (SocketTimeoutException e) {
+                    expireLeases();
+                }
+            }
+        } finally {
+            synchronized (ExtractCoordinator.class) {
+                closed = true;
+            }
+        }
+    }
+}
@@ -28,12 +28,14 @@ import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.logging.FileHandler;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
@@ -43,7 +45,8 @@ import edu.mit.csail.sdg.ast.Command;
 import edu.mit.csail.sdg.ast.CommandScope;
 import edu.mit.csail.sdg.ast.Module;
 import edu.mit.csail.sdg.parser.CompUtil;
-import edu.mit.csail.sdg.translator.A4Options;
+
+import alloymodelsettools.RunCommand.ScopeStrategy;
 
 
 // Extract a list of sat/unsat models, also find appropriate scopes which let solving time fall in a desired range.
@@ -62,10 +65,85 @@ public class ExtractModels {
     static int max_scope = 300;
     static int num_sat_wanted = 200;
     static int num_unsat_wanted = 200;
+    // Instead of binary searching for a single scope, measure the runtime of the chosen command at the geometric series
+    // of overall scopes min_scope, min_scope * sweep_growth_factor, ... up to max_scope, and record the whole
+    // scope-runtime curve in scope_curves.csv. The sweep stops as soon as some scope times out.
+    static boolean sweep_mode = false;
+    static double sweep_growth_factor = 1.5;
+    // Number of RunCommand processes running at the same time in sweep mode and with parallel_searches
+    static int num_workers = 4;
+    // Search the scopes of several files at once, with up to num_workers RunCommand processes, instead of one file
+    // after the other. Every probe is a step of its own, and the shortest pending step of any search runs first, see
+    // ProbeScheduler. The searches are binary searches, sweep_mode is ignored.
+    static boolean parallel_searches = false;
+    // Speculative binary search: the two scopes the search may try after the middle one, a quarter and three quarters
+    // into the range, run at the same time as the middle one, and the one on the losing side is killed as soon as
+    // the middle one is done. Each step then takes about as long as its slowest useful probe, for up to three times
+    // the CPU. Only used when three RunCommand processes fit in memory, see MemoryAdmission, and not with
+    // parallel_searches, which keeps the processes busy with other files instead.
+    static boolean speculative_bisection = false;
+    // Strategies used to apply the searched scope to a command, see RunCommand.ScopeStrategy. The next strategy is
+    // only tried if no scope in range is found with the previous one, e.g. when the runtime jumps straight from too
+    // short to timeout between two adjacent overall scopes.
+    static ScopeStrategy[] scope_strategies = {ScopeStrategy.OVERALL};
+    // Name of the sig tuned by ScopeStrategy.DOMINANT_SIG, like "Time". If empty, the sig with the largest explicit
+    // scope in the command is tuned.
+    static String dominant_sig_name = "";
+    // Bitwidth set on every new command, -1 keeps the bitwidth of the original command
+    static int bitwidth = -1;
+    // Whether ScopeStrategy.PROPORTIONAL also scales the maxseq of the original command
+    static boolean scale_maxseq = false;
+    // Probe the files in decreasing order of their chance of having a scope in range, and start the binary search
+    // at the predicted scope, as predicted from the probe history by DifficultyPredictor.
+    static boolean rank_by_predictor = false;
+    // commandScopes.csv files of earlier runs the predictor is fitted on, in addition to the one of this run
+    static String[] probe_history_files = {};
+    // Once the SAT or the UNSAT quota is met, put off the files whose command is at least defer_threshold likely to
+    // give a result of that kind until the other files are done, instead of searching a scope for them. The chance
+    // comes from SatPrior: the results of the same command in probe_history_files and this run's commandScopes.csv,
+    // or else a run of the command at prior_probe_scope.
+    static boolean quota_aware = false;
+    static double defer_threshold = 0.75;
+    static int prior_probe_scope = 3;
+    // Interleave the files of the different repositories, or of different sizes, in the order files are processed
+    // in, so that the quotas are not filled by a few large repositories or by similar models.
+    static boolean stratify_by_repository = false;
+    static boolean stratify_by_size = false;
+    // Before any timed run, bound the scope range to the scopes whose CNF has at most max_clauses clauses, using
+    // translate-only RunCommand processes which stop before solving.
+    static boolean bound_scope_by_translation = false;
+    static long max_clauses = 20000000;
+    // Maximum heap and thread stack size of every RunCommand process. Processes are only started while their
+    // maximum heaps fit in the available memory, see MemoryAdmission.
+    static int worker_heap_mb = 4096;
+    static String worker_stack_size = "16m";
+    // Time a RunCommand process gets on top of higher_bound_of_time_range_in_seconds to start up and parse the model
+    // before it is killed
+    static long startup_grace_in_seconds = 60;
+    // Whether to keep what RunCommand processes print, like solver output and stack traces, in worker_output.log.
+    // Their results are always logged.
+    static boolean keep_worker_output = false;
+    // A run that is out of memory is retried once with this maximum heap, capped at the memory MemoryAdmission admits,
+    // if that is larger than worker_heap_mb
+    static int oom_retry_heap_mb = 16384;
+    // Port of the Prometheus metrics endpoint on localhost, see Metrics. -1 to disable it.
+    static int metrics_port = 9400;
+    // A one-line progress summary is printed and logged this often, 0 to disable it
+    static long summary_period_in_seconds = 300;
+    // Seed of the random choices, the order of the files and the command chosen in each. -1 for the seed recorded in
+    // the README.md of the model set, or a new one if none is recorded.
+    static long seed = -1;
+    // With a port, coordinate ExtractWorker processes connecting to coordinator_address:coordinator_port instead of
+    // searching scopes in this process, see ExtractCoordinator. -1 to search in this process. The coordinator listens
+    // on this host only, set coordinator_address to the address of an interface to take workers from other hosts.
+    static int coordinator_port = -1;
+    static String coordinator_address = "127.0.0.1";
+    // A file leased to a worker is leased again if the worker reports nothing on it for this long. Workers send a
+    // heartbeat every third of it while searching.
+    static long lease_seconds = higher_bound_of_time_range_in_seconds + startup_grace_in_seconds + 60;
     // You don't need to change anything after this line
 
     // static variables
-    static Random randomGenerator = new Random();
     static String file_of_files = dirname + "/random-files-list.txt";
     static String file_sat_list = dirname + "/sat_models.txt";
     static String file_unsat_list = dirname + "/unsat_models.txt";
@@ -73,12 +151,35 @@ public class ExtractModels {
     static FileWriter satfile;
     static FileWriter unsatfile;
     static CSVPrinter summaryfile;
+    // Directory -> {url, commit} of the repositories the model set was cloned from
+    static Map<String, String[]> repositories = new HashMap<>();
     static Logger logger;
+    static Logger probeLogger = Logging.stage("probe");
     static CSVPrinter csvPrinter;
+    static CSVPrinter curvesfile;
     static Result lastResult;
+    // Set when the last search ended without any scope in range, so that the next strategy is worth trying
+    static boolean scopeNotFound;
+    // Last scope that ran out of memory in the last search, -1 if none
+    static int outOfMemoryScope = -1;
     static List<String> file_names = new ArrayList<String>();
+    static Map<String, DifficultyPredictor.Prediction> predictions = new HashMap<>();
+    // Files put off by quota_aware -> their chance of giving a result whose quota is met
+    static Map<String, Double> deferred = Collections.synchronizedMap(new LinkedHashMap<>());
+    // Cleared once the put off files are processed, so that they are not put off again
+    static boolean deferring = true;
+    // Set in an ExtractWorker process, whose probe results and failure records go to the coordinator
+    static boolean worker = false;
+    // Total wall-clock time spent in RunCommand processes
+    static AtomicLong solver_time_ns = new AtomicLong();
     static int num_sat = 0;
     static int num_unsat = 0;
+    static int num_files_processed = 0;
+    static AtomicInteger probes_in_flight = new AtomicInteger();
+    static long run_start_ns;
+    static int num_models_at_start;
+    // Upper bounds in seconds of the probe duration histogram buckets
+    static final double[] PROBE_DURATION_BUCKETS = {1, 10, 30, 60, 120, 300, 600, 1200, 3600};
     // stdio is used for error output
 
     static Integer Setup() {
@@ -87,17 +188,13 @@ public class ExtractModels {
 
             File f = new File(readmefilename);
             f.getParentFile().mkdirs();
+            Long recorded = RunSeed.recorded(dirname);
+            RunSeed.set(seed != -1 || recorded == null ? seed : recorded);
             readmefile = new FileWriter(readmefilename, true);
+            if (recorded == null || recorded != RunSeed.seed) readmefile.write(RunSeed.readmeLine());
 
-            // Set up logger
-            logger = Logger.getLogger("MyLog");
-            FileHandler fh;
-            // Configure the logger with handler and formatter
-            fh = new FileHandler(dirname + "/log.txt", true);
-            logger.addHandler(fh);
-            System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tc %2$s%n%4$s: %5$s%6$s%n");
-            SimpleFormatter formatter = new SimpleFormatter();
-            fh.setFormatter(formatter);
+            // Set up logger, writing one JSON object per line
+            logger = Logging.setup(dirname + "/log.jsonl");
             // Print out $machine info
             logger.info(util.getSystemInfo());
             return 0;
@@ -108,122 +205,241 @@ public class ExtractModels {
     }
 
 
-    // https://stackoverflow.com/questions/636367/executing-a-java-application-in-a-separate-process
-    public static final class JavaProcess {
-
-        private JavaProcess() {
-        }
-
-        public static Process getJavaProcess(Class klass, List<String> args) throws IOException,
-                InterruptedException {
-            String javaHome = System.getProperty("java.home");
-            String javaBin = javaHome +
-                    File.separator + "bin" +
-                    File.separator + "java";
-            String classpath = System.getProperty("java.class.path");
-            String className = klass.getName();
-
-            List<String> command = new LinkedList<String>();
-            command.add(javaBin);
-            command.add("-cp");
-            command.add(classpath);
-            command.add(className);
-            if (args != null) {
-                command.addAll(args);
-            }
-
-            ProcessBuilder builder = new ProcessBuilder(command);
-            return builder.start();
-        }
-    }
-
-    // There are 5 possible outcomes of running a command in an Alloy model
+    // There are 6 possible outcomes of running a command in an Alloy model
     // SUCCESS: It executes successfully with execution time falls in the desired time range
     //          [lower_bound_of_time_range_in_seconds, higher_bound_of_time_range_in_seconds]
     // TOOSHORT: It executes successfully but the execution time is shorter than lower_bound_of_time_range_in_seconds
-    // TIMEOUT: It times out in higher_bound_of_time_range_in_seconds seconds.
+    // TIMEOUT: It times out in higher_bound_of_time_range_in_seconds seconds, or exceeds the translation capacity.
+    // OUTOFMEMORY: It runs out of memory, even when retried with oom_retry_heap_mb.
     // EXCEPTION: It throws an exception when executing the command.
     // UNKNOWN: Unknown error has occurred. It should never reach here.
     public enum Status {
-        SUCCESS, TOOSHORT, TIMEOUT, EXCEPTION, UNKNOWN
+        SUCCESS, TOOSHORT, TIMEOUT, OUTOFMEMORY, EXCEPTION, UNKNOWN
+    }
+
+    // File the stderr of RunCommand processes is appended to, null to discard it
+    static File workerOutputLog() {
+        return keep_worker_output ? new File(dirname + "/worker_output.log") : null;
+    }
+
+    static List<String> workerJvmArgs(int heap_mb) {
+        return Arrays.asList("-Xmx" + heap_mb + "m", "-Xss" + worker_stack_size);
     }
 
     public static class Result {
         public final Status status;
         public final Long time;
         public final String satisfiable;
+        // What the RunCommand process reported, null if it did not report anything
+        public final ProbeRecord record;
 
         public Result(Status x, Long y, String z) {
+            this(x, y, z, null);
+        }
+
+        public Result(Status x, Long y, String z, ProbeRecord record) {
             this.status = x;
             this.time = y;
             this.satisfiable = z;
+            this.record = record;
         }
     }
 
     // Run the i-th command in the als file specified with the filePath, with
-    // scope set to overallScope. If overallScope is -1, runs the original
+    // scope applied by strategy. If scope is -1, runs the original
     // command. Returns enum status as explained above.
-    public static Result runCommand(String filePath, int i, int overallScope) {
+    public static Result runCommand(String filePath, int i, int scope, ScopeStrategy strategy) {
+        return runCommandAsync(filePath, i, scope, strategy).join();
+    }
+
+    // Starts the run of runCommand and completes with its result. A run that
+    // is out of memory is retried once with oom_retry_heap_mb, or with as much
+    // heap as fits in memory if that is less, unless that is no more than
+    // worker_heap_mb. Blocks until the process fits in memory. Cancelling the
+    // returned future kills the process of the run.
+    public static CompletableFuture<Result> runCommandAsync(String filePath, int i, int scope,
+                                                            ScopeStrategy strategy) {
+        // The run waited for, the retry once there is one
+        AtomicReference<CompletableFuture<Result>> running = new AtomicReference<>(
+                runCommandAsync(filePath, i, scope, strategy, worker_heap_mb));
+        CompletableFuture<Result> run = running.get().thenComposeAsync(result -> {
+            int retry_heap_mb = Math.min(oom_retry_heap_mb, MemoryAdmission.maxHeap());
+            if (result.status == Status.OUTOFMEMORY && retry_heap_mb > worker_heap_mb) {
+                logger.info("Out of memory with " + worker_heap_mb + "MB heap, retrying with " + retry_heap_mb
+                        + "MB");
+                running.set(runCommandAsync(filePath, i, scope, strategy, retry_heap_mb));
+                return running.get();
+            }
+            return CompletableFuture.completedFuture(result);
+        }, ProbeSupervisor.callbacks);
+        run.whenComplete((result, e) -> {
+            if (run.isCancelled()) running.get().cancel(true);
+        });
+        return run;
+    }
+
+    static CompletableFuture<Result> runCommandAsync(String filePath, int i, int scope, ScopeStrategy strategy,
+                                                     int heap_mb) {
+        int reserved_mb;
         try {
-            Process process = JavaProcess.getJavaProcess(RunCommand.class,
-                    Arrays.asList(filePath, String.valueOf(i), String.valueOf(overallScope)));
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            long executionTime = higher_bound_of_time_range_in_seconds * 1000000000;
-            String satisfiable = "";
-            boolean outOfMemoryError = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("Execution time(ns)")) {
-                    executionTime = Long.parseLong(line.split(": ")[1]);
-                } else if (line.contains("Satisfiable?")) {
-                    satisfiable = line.split(": ")[1];
-                } else if (line.contains("java.lang.OutOfMemoryError") || line.contains("Translation capacity exceeded.")) {
-                    outOfMemoryError = true;
-                }
-                logger.info(line);
+            reserved_mb = MemoryAdmission.acquire(heap_mb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(new Result(Status.UNKNOWN, (long) -1, ""));
+        }
+        long startTime = System.nanoTime();
+        probes_in_flight.incrementAndGet();
+        try {
+            CompletableFuture<ProbeSupervisor.ProbeOutput> launched = ProbeSupervisor.launch(RunCommand.class,
+                    workerJvmArgs(heap_mb),
+                    Arrays.asList(filePath, String.valueOf(i), String.valueOf(scope), strategy.name()),
+                    higher_bound_of_time_range_in_seconds + startup_grace_in_seconds, workerOutputLog());
+            // Also runs when the run is cancelled
+            launched.whenComplete((output, e) -> {
+                MemoryAdmission.release(reserved_mb);
+                probes_in_flight.decrementAndGet();
+                long duration = System.nanoTime() - startTime;
+                solver_time_ns.addAndGet(duration);
+                Metrics.observe("extract_probe_duration_seconds", PROBE_DURATION_BUCKETS, duration / 1e9);
+                if (launched.isCancelled()) Metrics.inc("extract_probes_total", "status", "CANCELLED");
+            });
+            CompletableFuture<Result> run = launched.thenApply(ExtractModels::runResult)
+                    .whenComplete((result, e) -> {
+                        // A cancelled run is counted above, and has no result to report
+                        if (e instanceof CancellationException || e != null
+                                && e.getCause() instanceof CancellationException) return;
+                        Metrics.inc("extract_probes_total", "status",
+                                result == null ? Status.UNKNOWN.name() : result.status.name());
+                        if (worker) ExtractWorker.probe(scope, result, System.nanoTime() - startTime);
+                    });
+            run.whenComplete((result, e) -> {
+                if (run.isCancelled()) launched.cancel(true);
+            });
+            return run;
+        } catch (Exception e) {
+            MemoryAdmission.release(reserved_mb);
+            probes_in_flight.decrementAndGet();
+            logger.warning("Java Process: Unknown state!");
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return CompletableFuture.completedFuture(new Result(Status.UNKNOWN, (long) -1, ""));
+        }
+    }
+
+    // Interprets the ProbeRecord of a finished RunCommand process.
+    static Result runResult(ProbeSupervisor.ProbeOutput output) {
+        if (output.timedOut) {
+            probeLogger.info("Java Process: Timeout!");
+            probeLogger.info("Takes too long!");
+            return new Result(Status.TIMEOUT, (long) -1, "");
+        }
+        ProbeRecord record = ProbeRecord.read(output.stdout);
+        if (record == null) {
+            probeLogger.warning("Java Process: Unknown state! Exit value " + output.exitValue + " without result");
+            return new Result(Status.UNKNOWN, (long) -1, "");
+        }
+        probeLogger.info(record.toString());
+        if (record.outcome == ProbeRecord.Outcome.SAT || record.outcome == ProbeRecord.Outcome.UNSAT) {
+            String satisfiable = record.outcome.name();
+            if (record.executionTime > higher_bound_of_time_range_in_seconds * 1000000000) {
+                return new Result(Status.TIMEOUT, (long) -1, "", record);
+            } else if (record.executionTime >= lower_bound_of_time_range_in_seconds * 1000000000) {
+                return new Result(Status.SUCCESS, record.executionTime, satisfiable, record);
+            } else {
+                probeLogger.info("Takes too short!");
+                return new Result(Status.TOOSHORT, record.executionTime, satisfiable, record);
             }
-            int returnValue = process.waitFor();
-            if (returnValue == 0) {
-                logger.info("Java Process: Alright!");
-                if (executionTime > higher_bound_of_time_range_in_seconds * 1000000000) {
-                    return new Result(Status.TIMEOUT, (long) -1, "");
-                } else if (executionTime >= lower_bound_of_time_range_in_seconds * 1000000000) {
-                    return new Result(Status.SUCCESS, executionTime, satisfiable);
-                } else {
-                    logger.info("Takes too short!");
-                    return new Result(Status.TOOSHORT, executionTime, satisfiable);
-                }
-            } else if (returnValue == 1) {
-                logger.info("Java Process: Timeout!");
-                logger.info("Takes too long!");
-                return new Result(Status.TIMEOUT, (long) -1, "");
-            } else if (returnValue == 2) {
-                logger.info("Java Process: Exception thrown!");
-                if (outOfMemoryError) {
-                    logger.info("Out of memory error, treated as timeout");
-                    return new Result(Status.TIMEOUT, (long) -1, "");
-                } else {
-                    logger.warning("Attention! Other exceptions (not oom) are thrown.");
-                    return new Result(Status.EXCEPTION, (long) -1, "");
-                }
+        } else if (record.outcome == ProbeRecord.Outcome.EXCEPTION) {
+            // Alloy wraps errors thrown while solving, an OutOfMemoryError included, in an ErrorFatal, so look
+            // through the whole cause chain RunCommand.describe writes
+            if (record.errorClass.equals(OutOfMemoryError.class.getName())
+                    || record.errorMessage.contains(OutOfMemoryError.class.getName())) {
+                probeLogger.info("Out of memory error");
+                return new Result(Status.OUTOFMEMORY, (long) -1, "", record);
+            } else if (record.errorMessage.contains("Translation capacity exceeded.")) {
+                probeLogger.info("Translation capacity exceeded, treated as timeout");
+                return new Result(Status.TIMEOUT, (long) -1, "", record);
             } else {
-                logger.warning("Java Process: Unknown state!");
-                return new Result(Status.UNKNOWN, (long) -1, "");
+                probeLogger.warning("Attention! Other exceptions (not oom) are thrown.");
+                return new Result(Status.EXCEPTION, (long) -1, "", record);
             }
+        } else {
+            probeLogger.warning("Java Process: Unknown state!");
+            return new Result(Status.UNKNOWN, (long) -1, "", record);
+        }
+    }
+
+    // Translates the i-th command with scope applied by strategy in a
+    // RunCommand process, without solving it. Returns null if the translation
+    // times out or fails, like with "Translation capacity exceeded.".
+    public static RunCommand.TranslationStats translateCommand(String filePath, int i, int scope,
+                                                               ScopeStrategy strategy) {
+        int reserved_mb;
+        try {
+            reserved_mb = MemoryAdmission.acquire(worker_heap_mb);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        long startTime = System.nanoTime();
+        try {
+            ProbeSupervisor.ProbeOutput output = ProbeSupervisor.launch(RunCommand.class,
+                    workerJvmArgs(worker_heap_mb),
+                    Arrays.asList(filePath, String.valueOf(i), String.valueOf(scope), strategy.name(), "translate"),
+                    higher_bound_of_time_range_in_seconds + startup_grace_in_seconds, workerOutputLog()).join();
+            ProbeRecord record = output.timedOut ? null : ProbeRecord.read(output.stdout);
+            if (record == null || record.outcome != ProbeRecord.Outcome.TRANSLATED) {
+                logger.info("Translation failed with scope " + scope + (record == null ? "" : ": " + record));
+                return null;
+            }
+            RunCommand.TranslationStats stats = new RunCommand.TranslationStats();
+            stats.primaryVars = record.primaryVars;
+            stats.totalVars = record.totalVars;
+            stats.clauses = record.clauses;
+            stats.translationTime = record.translationTime;
+            return stats;
         } catch (Exception e) {
-            logger.warning("Java Process: Unknown state!");
             logger.log(Level.SEVERE, e.getMessage(), e);
-            return new Result(Status.UNKNOWN, (long) -1, "");
+            return null;
+        } finally {
+            MemoryAdmission.release(reserved_mb);
+            solver_time_ns.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    // Returns the largest scope in range [min_scope, max_scope] whose
+    // translation succeeds with at most max_clauses clauses, min_scope - 1 if
+    // there is none. The CNF grows with the scope, so this binary searches
+    // with translate-only probes, which are much cheaper than solving.
+    static int translationBound(String als_file_path, int which_command, ScopeStrategy strategy, int min_scope,
+                                int max_scope) {
+        int bound = min_scope - 1;
+        while (max_scope >= min_scope && !abandoned()) {
+            int mid_scope = min_scope + (max_scope - min_scope) / 2;
+            RunCommand.TranslationStats stats = translateCommand(als_file_path, which_command, mid_scope, strategy);
+            if (stats != null && stats.clauses <= max_clauses) {
+                logger.info("Scope " + mid_scope + " translates to " + stats.primaryVars + " primary variables, "
+                        + stats.totalVars + " variables and " + stats.clauses + " clauses in "
+                        + stats.translationTime + "ns");
+                bound = mid_scope;
+                min_scope = mid_scope + 1;
+            } else {
+                max_scope = mid_scope - 1;
+            }
         }
+        return bound;
     }
 
     // Returns one scope in range [min_scope, max_scope] whose runtime of the
     // i-th command in that als file falls in the desired time range.
-    // -1 if we cannot find anything
-    static Integer binarySearch(String als_file_path, int which_command, Command cmd, int min_scope, int max_scope) {
+    // -1 if we cannot find anything. The first scope tried is guess_scope if
+    // it is in range, otherwise the middle of the range.
+    static Integer binarySearch(String als_file_path, int which_command, Command cmd, ScopeStrategy strategy,
+                                int min_scope, int max_scope, int guess_scope) {
+        if (abandoned()) return -1;
         if (max_scope >= min_scope) {
-            int mid_scope = min_scope + (max_scope - min_scope) / 2;
-            lastResult = runCommand(als_file_path, which_command, mid_scope);
+            int mid_scope = guess_scope >= min_scope && guess_scope <= max_scope ? guess_scope
+                    : min_scope + (max_scope - min_scope) / 2;
+            lastResult = runCommand(als_file_path, which_command, mid_scope, strategy);
             try {
                 if (num_sat >= num_sat_wanted && lastResult.satisfiable.equals("SAT")) {
                     logger.info("Enough sat models");
@@ -245,8 +461,10 @@ public class ExtractModels {
 
             // If mid_scope is taking too short, then it can only be present
             // in smaller scopes
-            if (exitStatus == Status.TIMEOUT)
-                return binarySearch(als_file_path, which_command, cmd, min_scope, mid_scope - 1);
+            if (exitStatus == Status.OUTOFMEMORY)
+                outOfMemoryScope = mid_scope;
+            if (exitStatus == Status.TIMEOUT || exitStatus == Status.OUTOFMEMORY)
+                return binarySearch(als_file_path, which_command, cmd, strategy, min_scope, mid_scope - 1, -1);
 
             if (exitStatus == Status.EXCEPTION || exitStatus == Status.UNKNOWN) {
                 logger.warning("Exception or unknown error thrown when doing binary search with scope " + mid_scope);
@@ -260,30 +478,174 @@ public class ExtractModels {
             }
 
             // Else we will search for larger scopes
-            return binarySearch(als_file_path, which_command, cmd, mid_scope + 1, max_scope);
+            return binarySearch(als_file_path, which_command, cmd, strategy, mid_scope + 1, max_scope, -1);
         }
 
+        // We reach here when no scope in the range have desired execution time
+        scopeNotFound = true;
+        recordScopeNotFound(als_file_path, which_command, cmd, min_scope, max_scope, outOfMemoryScope);
+        return -1;
+    }
+
+    // Records why a binary search ended without a scope, given the range [min_scope, max_scope] it was left with
+    static void recordScopeNotFound(String als_file_path, int which_command, Command cmd, int min_scope,
+                                    int max_scope, int outOfMemoryScope) {
         try {
-            // We reach here when no scope in the range have desired execution time
+            String outOfMemory = outOfMemoryScope == -1 ? "" : ", out of memory at scope " + outOfMemoryScope;
             if (max_scope < ExtractModels.min_scope) {
                 logger.info("Scope not found after searching for " + min_scope);
-                csvFailureRecord(als_file_path, which_command, cmd, "Scope not found above " + min_scope);
-                return -1;
+                csvFailureRecord(als_file_path, which_command, cmd, "Scope not found above " + min_scope + outOfMemory);
             } else if (min_scope > ExtractModels.max_scope) {
                 logger.info("Scope not found after searching for " + max_scope);
-                csvFailureRecord(als_file_path, which_command, cmd, "Scope not found under " + max_scope);
-                return -1;
+                csvFailureRecord(als_file_path, which_command, cmd, "Scope not found under " + max_scope + outOfMemory);
             } else {
                 logger.info("Scope not found");
-                csvFailureRecord(als_file_path, which_command, cmd, "Cannot find after binary search");
-                return -1;
+                csvFailureRecord(als_file_path, which_command, cmd, "Cannot find after binary search" + outOfMemory);
             }
         } catch (
                 Exception e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // Same as binarySearch, with the next scopes on both sides of the middle scope run at the same time as it, see
+    // speculative_bisection. The scopes tried are the ones binarySearch tries, so the result is the same.
+    static Integer speculativeSearch(String als_file_path, int which_command, Command cmd, ScopeStrategy strategy,
+                                     int min_scope, int max_scope, int guess_scope) {
+        // Scope -> run started for it
+        Map<Integer, CompletableFuture<Result>> running = new HashMap<>();
+        try {
+            while (max_scope >= min_scope) {
+                if (abandoned()) return -1;
+                int mid_scope = guess_scope >= min_scope && guess_scope <= max_scope ? guess_scope
+                        : min_scope + (max_scope - min_scope) / 2;
+                guess_scope = -1;
+                // The middle scopes of both halves left by mid_scope
+                List<Integer> scopes = new ArrayList<>(Collections.singletonList(mid_scope));
+                if (mid_scope - 1 >= min_scope) scopes.add(min_scope + (mid_scope - 1 - min_scope) / 2);
+                if (mid_scope + 1 <= max_scope) scopes.add(mid_scope + 1 + (max_scope - mid_scope - 1) / 2);
+                for (int scope : scopes) {
+                    if (!running.containsKey(scope)) {
+                        running.put(scope, runCommandAsync(als_file_path, which_command, scope, strategy));
+                    }
+                }
+                lastResult = running.remove(mid_scope).join();
+                if (num_sat >= num_sat_wanted && lastResult.satisfiable.equals("SAT")) {
+                    logger.info("Enough sat models");
+                    csvFailureRecord(als_file_path, which_command, cmd, "Enough sat models");
+                    return -1;
+                } else if (num_unsat >= num_unsat_wanted && lastResult.satisfiable.equals("UNSAT")) {
+                    logger.info("Enough unsat models");
+                    csvFailureRecord(als_file_path, which_command, cmd, "Enough unsat models");
+                    return -1;
+                }
+                Status exitStatus = lastResult.status;
+                if (exitStatus == Status.SUCCESS) return mid_scope;
+                if (exitStatus == Status.EXCEPTION || exitStatus == Status.UNKNOWN) {
+                    logger.warning("Exception or unknown error thrown when doing binary search with scope "
+                            + mid_scope);
+                    csvFailureRecord(als_file_path, which_command, cmd, "Other exceptions or unknown state");
+                    return -1;
+                }
+                if (exitStatus == Status.OUTOFMEMORY) outOfMemoryScope = mid_scope;
+                if (exitStatus == Status.TIMEOUT || exitStatus == Status.OUTOFMEMORY) {
+                    max_scope = mid_scope - 1;
+                } else {
+                    min_scope = mid_scope + 1;
+                }
+                // Kill the runs on the losing side
+                Iterator<Map.Entry<Integer, CompletableFuture<Result>>> it = running.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, CompletableFuture<Result>> entry = it.next();
+                    if (entry.getKey() < min_scope || entry.getKey() > max_scope) {
+                        entry.getValue().cancel(true);
+                        it.remove();
+                    }
+                }
+            }
+            // We reach here when no scope in the range have desired execution time
+            scopeNotFound = true;
+            recordScopeNotFound(als_file_path, which_command, cmd, min_scope, max_scope, outOfMemoryScope);
+            return -1;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
             return -1;
+        } finally {
+            for (CompletableFuture<Result> run : running.values()) run.cancel(true);
         }
+    }
 
+    // Returns the geometric series of overall scopes in range [min_scope, max_scope] used by the sweep mode.
+    static List<Integer> sweepScopes(int min_scope, int max_scope) {
+        List<Integer> scopes = new ArrayList<>();
+        for (int scope = Math.max(min_scope, 1); scope <= max_scope;
+             scope = Math.max(scope + 1, (int) Math.ceil(scope * sweep_growth_factor))) {
+            scopes.add(scope);
+        }
+        return scopes;
+    }
+
+    // Measures the runtime of the i-th command at every scope of sweepScopes, num_workers scopes at a time, and
+    // records every point of the curve in scope_curves.csv. Once a scope times out, runs out of memory or fails, the
+    // runs of larger scopes in its batch are killed and no larger scope is tried. Returns the smallest scope whose
+    // runtime falls in the desired time range and whose result is still wanted, -1 if there is none.
+    static Integer sweep(String als_file_path, int which_command, Command cmd, ScopeStrategy strategy,
+                         int min_scope, int max_scope) {
+        List<Integer> scopes = sweepScopes(min_scope, max_scope);
+        int found = -1;
+        boolean timedOut = false;
+        boolean failed = false;
+        try {
+            for (int from = 0; from < scopes.size() && !timedOut && !failed && !abandoned(); from += num_workers) {
+                List<Integer> batch = scopes.subList(from, Math.min(from + num_workers, scopes.size()));
+                List<CompletableFuture<Result>> futures = new ArrayList<>();
+                for (int scope : batch) {
+                    futures.add(runCommandAsync(als_file_path, which_command, scope, strategy));
+                }
+                for (int k = 0; k < batch.size() && !timedOut && !failed; k++) {
+                    int scope = batch.get(k);
+                    Result result = futures.get(k).join();
+                    curvesfile.printRecord(als_file_path, which_command, cmd, scope, result.status,
+                            result.time == -1 ? "" : String.format("%.2f", (float) result.time / 1000000000),
+                            result.satisfiable);
+                    if (result.status == Status.TIMEOUT || result.status == Status.OUTOFMEMORY) {
+                        timedOut = true;
+                    } else if (result.status == Status.EXCEPTION || result.status == Status.UNKNOWN) {
+                        logger.warning("Exception or unknown error thrown when sweeping with scope " + scope);
+                        failed = true;
+                    } else if (found == -1 && result.status == Status.SUCCESS
+                            && !(num_sat >= num_sat_wanted && result.satisfiable.equals("SAT"))
+                            && !(num_unsat >= num_unsat_wanted && result.satisfiable.equals("UNSAT"))) {
+                        found = scope;
+                        lastResult = result;
+                    }
+                    if (timedOut || failed) {
+                        // Larger scopes would only take longer, or fail the same way
+                        for (CompletableFuture<Result> future : futures.subList(k + 1, futures.size())) {
+                            future.cancel(true);
+                        }
+                    }
+                }
+                curvesfile.flush();
+            }
+            if (found == -1 && failed && !abandoned()) {
+                csvFailureRecord(als_file_path, which_command, cmd, "Other exceptions or unknown state");
+            } else if (found == -1 && !abandoned()) {
+                scopeNotFound = true;
+                logger.info("Scope not found by sweeping " + scopes);
+                csvFailureRecord(als_file_path, which_command, cmd, "Scope not found by sweep");
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return -1;
+        }
+        return found;
+    }
+
+    // Whether the search of the current file is to stop because this is a worker whose lease on the file expired, so
+    // the coordinator leased it to another worker and drops what this one reports on it
+    static boolean abandoned() {
+        return worker && ExtractWorker.expired;
     }
 
     static String successMessage(int i, int scope) {
@@ -291,123 +653,225 @@ public class ExtractModels {
     }
 
     public static void csvFailureRecord(String file_path, int i, Command command, String reason) throws IOException {
+        if (worker) {
+            ExtractWorker.failure(reason);
+            return;
+        }
         csvPrinter.printRecord(file_path, i, command, "", "", "", reason);
         csvPrinter.flush();
     }
 
-    public static void csvSuccessRecord(String file_path, int i, Command command, int scope) throws IOException {
-        csvPrinter.printRecord(file_path, i, command,
-                RunCommand.changeOverallScope(command, scope), scope,
+    public static void csvSuccessRecord(String file_path, int i, Command command, Command new_command, int scope)
+            throws IOException {
+        csvPrinter.printRecord(file_path, i, command, new_command, scope,
                 String.format("%.2f", (float) lastResult.time / 1000000000), lastResult.satisfiable);
         csvPrinter.flush();
     }
 
-    static Integer ExtractModelsFromFile(File file) {
-        try {
-            Module world = CompUtil.parseEverything_fromFile(null, null, file.getPath());
-
-            // Choose some default options for how you want to execute the commands
-            A4Options options = new A4Options();
-
-            options.solver = A4Options.SatSolver.SAT4J;
-
-            int i = randomGenerator.nextInt(world.getAllCommands().size());
-            Command command = world.getAllCommands().get(i);
-            // If we find a cmd that has startingscope!=endingscope, then let's not include this cmd in our tests
-            boolean containsGrowingSig = false;
-            for (CommandScope cs : command.scope) {
-                if (cs.startingScope != cs.endingScope) {
-                    logger.info("Growing sig detected! startingScope != endingScope for command: " + command);
-                    containsGrowingSig = true;
-                    csvFailureRecord(file.getPath(), i, command, "Growing Sig");
-                    break;
-                }
-            }
-            if (containsGrowingSig) return 0;
-            // If the command is the default one, it means there are no commands in this file. We skip the file.
-            if (command.label.equals("Default") && world.getAllReachableUserDefinedSigs().stream().map(x -> x.label).noneMatch(str -> str.equals("this/Default"))) {
-                return 0;
-            }
-            int scope = binarySearch(file.getPath(), i, command, min_scope, max_scope);
-            if (scope == -1) {
-                return 0;
-            } else {
-                logger.info(successMessage(i, scope));
-                csvSuccessRecord(file.getPath(), i, command, scope);
-            }
-
-            // Print files with new commands in sat and unsat directories
-            Path path = file.toPath();
-            Charset charset = StandardCharsets.UTF_8;
-            String content = Files.readString(path, charset);
-            // Remove all comments, keeps double-quoted string literals
-            // https://stackoverflow.com/questions/24518020/comprehensive-regexp-to-remove-javascript-comments
-            String pattern1 = "(\"(?:\\[\\s\\S]|.)*?\")|//.*?$|--.*?$|/\\*[\\s\\S]*?\\*/";
-            Pattern r1 = Pattern.compile(pattern1, Pattern.MULTILINE);
-            Matcher m1 = r1.matcher(content);
-            content = m1.replaceAll("$1");
-            // Remove all commands using regular expression
-            // name : ["run" or "check"] anything* until the start of next block
-            String pattern = "(\\w+\\s*:\\s*|\\b)(check|run)\\b[\\S\\s]*?(?=(" +
-                    "(abstract|assert|check|fact|fun|module|none|open|pred|run|((var\\s+)?((lone|some|one)\\s+)?)sig)\\s|\\Z))";
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(content);
-            int index = 0;
-            String nameExpr = "";
-            while (m.find()) {
-                // Extract the Expression of the i-th command to be used later
-                if (index == i) {
-                    if (m.group().contains("{")) {
-                        nameExpr = m.group().substring(m.group().indexOf("{"), m.group().lastIndexOf("}") + 1);
-                    }
-                    break;
-                }
-                index++;
+    // Whether to put off the i-th command of the file because its result would likely only add to a met quota, see
+    // quota_aware. Records the file in deferred if so.
+    static boolean shouldDefer(String path, int i) {
+        boolean sat_full = num_sat >= num_sat_wanted;
+        boolean unsat_full = num_unsat >= num_unsat_wanted;
+        if (sat_full == unsat_full) return false;
+        Double sat = SatPrior.fromHistory(path.startsWith(dirname + "/") ? path.substring(dirname.length() + 1) : path,
+                i);
+        if (sat == null) {
+            Result probe = runCommand(path, i, prior_probe_scope, ScopeStrategy.OVERALL);
+            sat = SatPrior.fromSmallScope(probe.satisfiable);
+            if (sat == null) return false;
+        }
+        double full = sat_full ? sat : 1 - sat;
+        if (full < defer_threshold) return false;
+        logger.info(String.format("Put off, %s with chance %.2f and enough %s models", sat_full ? "SAT" : "UNSAT",
+                full, sat_full ? "sat" : "unsat"));
+        deferred.put(path, full);
+        Metrics.inc("extract_files_deferred_total");
+        return true;
+    }
+
+    // Stratum of the file for stratify_by_repository and stratify_by_size
+    static String stratum(String path) {
+        String relative = path.startsWith(dirname + "/") ? path.substring(dirname.length() + 1) : path;
+        String repository = stratify_by_repository && relative.contains("/")
+                ? relative.substring(0, relative.indexOf('/')) : "";
+        long size = new File(path).length();
+        int size_class = !stratify_by_size || size < 2048 ? 0 : size < 8192 ? 1 : size < 32768 ? 2 : 3;
+        return repository + "/" + size_class;
+    }
+
+    // Interleaves the files of every stratum, taking one file of each in turn and keeping the order of the files
+    // within a stratum
+    static void stratify(List<String> files) {
+        Map<String, Deque<String>> strata = new LinkedHashMap<>();
+        for (String path : files) strata.computeIfAbsent(stratum(path), k -> new ArrayDeque<>()).add(path);
+        files.clear();
+        while (!strata.isEmpty()) {
+            Iterator<Deque<String>> it = strata.values().iterator();
+            while (it.hasNext()) {
+                Deque<String> stratum = it.next();
+                files.add(stratum.poll());
+                if (stratum.isEmpty()) it.remove();
             }
-            content = content.replaceAll(pattern, "\n");
+        }
+    }
 
-            // Check if it really works
-            pattern = "\\b(run|check)\\b";
-            r = Pattern.compile(pattern);
-            m = r.matcher(content);
-            if (m.find()) {
-                logger.warning("Error, there's some old commands left unexpectedly.");
-                return 1;
+    // The command chosen in a file, see choose
+    static class Choice {
+        final Module world;
+        final int i;
+        final Command command;
+
+        Choice(Module world, int i, Command command) {
+            this.world = world;
+            this.i = i;
+            this.command = command;
+        }
+    }
+
+    // A scope found in range for the command of a Choice, and the result of the command at that scope
+    static class Found {
+        final int scope;
+        final ScopeStrategy strategy;
+        final Command scoped_command;
+        final Result result;
+
+        Found(int scope, ScopeStrategy strategy, Command scoped_command, Result result) {
+            this.scope = scope;
+            this.strategy = strategy;
+            this.scoped_command = scoped_command;
+            this.result = result;
+        }
+    }
+
+    // Parses the file and chooses one of its commands at random. Returns null if the command is not worth searching a
+    // scope for.
+    static Choice choose(File file) throws Exception {
+        return choose(file, CompUtil.parseEverything_fromFile(null, null, file.getPath()));
+    }
+
+    // Chooses one of the commands of the parsed file, see choose(File)
+    static Choice choose(File file, Module world) throws Exception {
+        // Keyed by the content of the file, so a copy of the model gets the same command in any run with this seed
+        int i = RunSeed.stream("command", util.sha256(file.toPath())).nextInt(world.getAllCommands().size());
+        Command command = world.getAllCommands().get(i);
+        // If we find a cmd that has startingscope!=endingscope, then let's not include this cmd in our tests
+        for (CommandScope cs : command.scope) {
+            if (cs.startingScope != cs.endingScope) {
+                logger.info("Growing sig detected! startingScope != endingScope for command: " + command);
+                csvFailureRecord(file.getPath(), i, command, "Growing Sig");
+                return null;
             }
+        }
+        // If the command is the default one, it means there are no commands in this file. We skip the file.
+        if (command.label.equals("Default") && world.getAllReachableUserDefinedSigs().stream().map(x -> x.label).noneMatch(str -> str.equals("this/Default"))) {
+            return null;
+        }
+        return new Choice(world, i, command);
+    }
 
-            // Write new commands to the file
-            Command new_command = RunCommand.changeOverallScope(command, scope);
-            String command_str = new_command.toString();
-            // Replace Check and Run with lowercase letters
-            if (command_str.contains("Check ")) {
-                command_str = command_str.replaceFirst("Check", "check");
-            } else if (command_str.contains("Run ")) {
-                command_str = command_str.replaceFirst("Run", "run");
+    // Scope predicted for the file by DifficultyPredictor, -1 if none
+    static int predictedScope(String path) {
+        DifficultyPredictor.Prediction prediction = predictions.get(path);
+        return prediction == null ? -1 : prediction.scope;
+    }
+
+    // Searches a scope in range for the chosen command with every strategy in turn, the binary search starting at
+    // guess_scope if it is not -1. Returns null if none is found.
+    static Found search(File file, Choice choice, int guess_scope) throws Exception {
+        int i = choice.i;
+        Command command = choice.command;
+        for (ScopeStrategy strategy : scope_strategies) {
+            if (abandoned()) return null;
+            Command scoped_command = RunCommand.changeScope(command, choice.world.getAllReachableSigs(), min_scope,
+                    strategy);
+            if (scoped_command == null) {
+                logger.info("Scope strategy " + strategy + " does not apply to command: " + command);
+                continue;
             }
-            if (!nameExpr.isEmpty()) {
-                command_str = command_str.replace(" " + new_command.label + " ", " " + nameExpr + " ");
-            } else {
-                // For special case:  command_name: check pred_name for 5
-                // We want to use pred_name not command_name here
-                if (world.getAllReachableSigs().stream().map(x -> x.label).noneMatch(str -> str.contains(new_command.label))) {
-                    command_str = command_str.replace(" " + new_command.label + " ", " " + new_command.nameExpr + " ");
+            logger.info("Searching scope with strategy " + strategy);
+            int upper_scope = max_scope;
+            if (bound_scope_by_translation) {
+                upper_scope = translationBound(file.getPath(), i, strategy, min_scope, max_scope);
+                if (abandoned()) return null;
+                logger.info("Translation bounds the scope to " + upper_scope);
+                if (upper_scope < min_scope) {
+                    csvFailureRecord(file.getPath(), i, command, "Translation too large at scope " + min_scope);
+                    continue;
                 }
             }
-            content = content + "\n" + command_str + "\n";
-            Files.write(path, content.getBytes(charset));
+            scopeNotFound = false;
+            outOfMemoryScope = -1;
+            int scope = sweep_mode ? sweep(file.getPath(), i, command, strategy, min_scope, upper_scope)
+                    : speculative_bisection && MemoryAdmission.maxWorkers(worker_heap_mb) >= 3
+                    ? speculativeSearch(file.getPath(), i, command, strategy, min_scope, upper_scope, guess_scope)
+                    : binarySearch(file.getPath(), i, command, strategy, min_scope, upper_scope, guess_scope);
+            if (scope != -1) {
+                return new Found(scope, strategy,
+                        RunCommand.changeScope(command, choice.world.getAllReachableSigs(), scope, strategy),
+                        lastResult);
+            }
+            if (!scopeNotFound) break;
+        }
+        return null;
+    }
 
-            if (lastResult.satisfiable.equals("SAT")) {
-                num_sat++;
-                satfile.write(file.getPath().split(dirname + "/", 2)[1] + "\n");
-                satfile.flush();
-            } else {
-                num_unsat++;
-                unsatfile.write(file.getPath().split(dirname + "/", 2)[1] + "\n");
-                unsatfile.flush();
+    // Writes the command with the found scope into the file, and records the model in the journal: commandScopes.csv,
+    // the SAT or UNSAT list and model_summary.csv
+    static void record(File file, Choice choice, Found found) throws IOException {
+        int i = choice.i;
+        Command command = choice.command;
+        Command scoped_command = found.scoped_command;
+        lastResult = found.result;
+        logger.info(successMessage(i, found.scope));
+        csvSuccessRecord(file.getPath(), i, command, scoped_command, found.scope);
+
+        // Print files with new commands in sat and unsat directories
+        Path path = file.toPath();
+        Charset charset = StandardCharsets.UTF_8;
+        String content = Files.readString(path, charset);
+        // Rewrite the scope of the command where the parser found it, and check the result parses
+        CommandEditor.Edit edit = CommandEditor.inPlace(content, command, i, scoped_command);
+        if (edit != null) {
+            Files.write(path, edit.content.getBytes(charset));
+            if (!CommandEditor.validate(file.getPath(), scoped_command)) {
+                logger.info("Rewritten command " + edit.command + " does not parse back, appending it instead");
+                edit = null;
+            }
+        }
+        if (edit == null) {
+            // Keeps the found scope even if the command could not be rewritten in place
+            edit = CommandEditor.appended(content, i, scoped_command, choice.world.getAllReachableSigs());
+            Files.write(path, edit.content.getBytes(charset));
+            if (!CommandEditor.validate(file.getPath(), scoped_command)) {
+                logger.warning("Appended command " + edit.command + " does not parse back in " + file.getPath());
             }
-            summaryfile.printRecord(file.getPath().split(dirname + "/", 2)[1], lastResult.satisfiable,
-                    command_str, scope);
-            summaryfile.flush();
+        }
+        String command_str = edit.command;
+
+        if (lastResult.satisfiable.equals("SAT")) {
+            num_sat++;
+            satfile.write(file.getPath().split(dirname + "/", 2)[1] + "\n");
+            satfile.flush();
+        } else {
+            num_unsat++;
+            unsatfile.write(file.getPath().split(dirname + "/", 2)[1] + "\n");
+            unsatfile.flush();
+        }
+        String relative_path = file.getPath().split(dirname + "/", 2)[1];
+        String[] provenance = util.Provenance(repositories, relative_path);
+        summaryfile.printRecord(relative_path, lastResult.satisfiable, command_str, found.scope, provenance[0],
+                provenance[1], provenance[2]);
+        summaryfile.flush();
+    }
+
+    static Integer ExtractModelsFromFile(File file) {
+        try {
+            Choice choice = choose(file);
+            if (choice == null) return 0;
+            if (quota_aware && deferring && shouldDefer(file.getPath(), choice.i)) return 0;
+            Found found = search(file, choice, predictedScope(file.getPath()));
+            if (found != null) record(file, choice, found);
         } catch (Exception e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
             return 1;
@@ -427,6 +891,104 @@ public class ExtractModels {
         }
     }
 
+    // Processes that can run at the same time
+    static int workerCapacity() {
+        int processes = sweep_mode || parallel_searches ? num_workers : speculative_bisection ? 3 : 1;
+        return Math.max(1, Math.min(processes, MemoryAdmission.maxWorkers(worker_heap_mb)));
+    }
+
+    // Estimated seconds until both quotas are met at the rate models were extracted so far in this run, NaN before
+    // the first model.
+    static double secondsToQuota() {
+        int extracted = num_sat + num_unsat - num_models_at_start;
+        int remaining = Math.max(0, num_sat_wanted - num_sat) + Math.max(0, num_unsat_wanted - num_unsat);
+        if (remaining == 0) return 0;
+        if (extracted <= 0) return Double.NaN;
+        return (System.nanoTime() - run_start_ns) / 1e9 / extracted * remaining;
+    }
+
+    static String summaryLine() {
+        double eta = secondsToQuota();
+        return String.format("Files %d/%d, probes %d running, SAT %d/%d, UNSAT %d/%d, %.1f solver-hours, "
+                        + "ETA to quota %s", num_files_processed, file_names.size(), probes_in_flight.get(),
+                num_sat, num_sat_wanted, num_unsat, num_unsat_wanted, solver_time_ns.get() / 3600e9,
+                Double.isNaN(eta) ? "unknown" : String.format("%.1fh", eta / 3600));
+    }
+
+    // Registers the gauges of the run, starts the metrics endpoint and schedules the periodic summary line.
+    static void startMetrics() {
+        Metrics.gauge("extract_files_listed", () -> (double) file_names.size());
+        Metrics.gauge("extract_models{satisfiable=\"SAT\"}", () -> (double) num_sat);
+        Metrics.gauge("extract_models{satisfiable=\"UNSAT\"}", () -> (double) num_unsat);
+        Metrics.gauge("extract_models_wanted{satisfiable=\"SAT\"}", () -> (double) num_sat_wanted);
+        Metrics.gauge("extract_models_wanted{satisfiable=\"UNSAT\"}", () -> (double) num_unsat_wanted);
+        Metrics.gauge("extract_probes_in_flight", () -> (double) probes_in_flight.get());
+        Metrics.gauge("extract_worker_utilization", () -> (double) probes_in_flight.get() / workerCapacity());
+        Metrics.gauge("extract_solver_seconds", () -> solver_time_ns.get() / 1e9);
+        Metrics.gauge("extract_seconds_to_quota", ExtractModels::secondsToQuota);
+        if (metrics_port >= 0) {
+            try {
+                Metrics.serve(metrics_port);
+                logger.info("Serving metrics on http://localhost:" + metrics_port + "/metrics");
+            } catch (IOException e) {
+                logger.warning("Cannot serve metrics on port " + metrics_port + ": " + e.getMessage());
+            }
+        }
+        if (summary_period_in_seconds > 0) {
+            ProbeSupervisor.timer.scheduleAtFixedRate(() -> {
+                String line = summaryLine();
+                System.out.println(line);
+                logger.info(line);
+            }, summary_period_in_seconds, summary_period_in_seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // The files put off by quota_aware, the least likely to only add to a met quota first
+    static List<String> putOff() {
+        List<String> put_off = new ArrayList<>(deferred.keySet());
+        put_off.sort(Comparator.comparingDouble(deferred::get));
+        return put_off;
+    }
+
+    // Searches the files in this process, then the files put off by quota_aware
+    static void extractInThisProcess() {
+        if (parallel_searches) {
+            try {
+                ProbeScheduler.run(file_names.subList(file_count, file_names.size()));
+                deferring = false;
+                ProbeScheduler.run(putOff());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        for (int i = file_count; i < file_names.size(); i++) {
+            String path = file_names.get(i);
+            logger.info("RUN NO. " + i + ", " + path);
+            if (num_sat >= num_sat_wanted && num_unsat >= num_unsat_wanted) {
+                break;
+            }
+            if (new File(path).exists()) {
+                num_files_processed++;
+                Metrics.inc("extract_files_processed_total");
+                if (ExtractModelsFromFile(new File(path)) == 1) {
+                    logger.warning("Abnormal Behaviour! Something bad happened when extracting SAT and UNSAT models.");
+                }
+            }
+        }
+        // Then the files put off by quota_aware
+        deferring = false;
+        for (String path : putOff()) {
+            if (num_sat >= num_sat_wanted && num_unsat >= num_unsat_wanted) {
+                break;
+            }
+            logger.info("PUT OFF RUN, " + path);
+            if (ExtractModelsFromFile(new File(path)) == 1) {
+                logger.warning("Abnormal Behaviour! Something bad happened when extracting SAT and UNSAT models.");
+            }
+        }
+    }
+
     static Integer ExtractSatUnsatModels() {
         if (file_count > 0) {
             // Resume a paused process
@@ -434,12 +996,17 @@ public class ExtractModels {
             DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
             LocalDateTime now = LocalDateTime.now();
             logger.info("**************** RESTART " + dtf.format(now) + "****************");
-            // read the random list of files
+            // read the random list of files, with the predictions of the difficulty predictor if it ranked them
             File file = new File(file_of_files);
             try (BufferedReader br = new BufferedReader(new FileReader(file))) {
                 String line;
                 while ((line = br.readLine()) != null) {
-                    file_names.add(line);
+                    String[] fields = line.split("\t");
+                    file_names.add(fields[0]);
+                    if (fields.length == 3) {
+                        predictions.put(fields[0], new DifficultyPredictor.Prediction(Double.parseDouble(fields[2]),
+                                Integer.parseInt(fields[1])));
+                    }
                 }
             } catch (Exception e) {
                 logger.log(Level.SEVERE, e.getMessage(), e);
@@ -464,7 +1031,15 @@ public class ExtractModels {
                     getListFileNames(f.listFiles());
                 }
             }
-            Collections.shuffle(file_names);
+            RunSeed.order(file_names, "files", path -> path.startsWith(dirname + "/")
+                    ? path.substring(dirname.length() + 1) : path);
+            if (stratify_by_repository || stratify_by_size) stratify(file_names);
+            if (rank_by_predictor) {
+                List<String> history = new ArrayList<>(Arrays.asList(probe_history_files));
+                history.add(dirname + "/commandScopes.csv");
+                logger.info("Fitted difficulty predictor on " + DifficultyPredictor.fit(history) + " files");
+                predictions = DifficultyPredictor.rank(file_names);
+            }
 
             try {
                 // Print out the file list
@@ -472,7 +1047,10 @@ public class ExtractModels {
                 f.getParentFile().mkdirs();
                 BufferedWriter wr = new BufferedWriter(new FileWriter(file_of_files));
                 for (String fname : file_names) {
-                    wr.write(fname);
+                    DifficultyPredictor.Prediction prediction = predictions.get(fname);
+                    // A resumed run reads the predicted scope back instead of predicting again
+                    wr.write(prediction == null ? fname
+                            : fname + "\t" + prediction.scope + "\t" + prediction.successProbability);
                     wr.newLine();
                 }
                 wr.close();
@@ -489,8 +1067,18 @@ public class ExtractModels {
             csvPrinter = new CSVPrinter(csvWriter, CSVFormat.DEFAULT.withHeader("File Path", "i-th Command",
                     "Original Command", "New Command", "Overall Scope", "Time", "Satisfiable?"));
             csvWriter = new FileWriter(dirname + "/model_summary.csv", true);
-            summaryfile = new CSVPrinter(csvWriter, CSVFormat.DEFAULT.withHeader("File Path", "Satisfiable?", "New " +
-                    "Command", "Scope"));
+            summaryfile = new CSVPrinter(csvWriter, CSVFormat.DEFAULT.withHeader("File Path", "Satisfiable?",
+                    "New Command", "Scope", "Repository", "Commit", "Path in Repository"));
+            repositories = util.ReadRepositories(dirname);
+            if (sweep_mode) {
+                csvWriter = new FileWriter(dirname + "/scope_curves.csv", true);
+                curvesfile = new CSVPrinter(csvWriter, CSVFormat.DEFAULT.withHeader("File Path", "i-th Command",
+                        "Original Command", "Overall Scope", "Status", "Time", "Satisfiable?"));
+                if (MemoryAdmission.maxWorkers(worker_heap_mb) < num_workers) {
+                    logger.warning("Only " + MemoryAdmission.maxWorkers(worker_heap_mb) + " workers with "
+                            + worker_heap_mb + "MB heap fit in memory, runs will wait for memory");
+                }
+            }
 
             // Open the .txt files containing sat/unsat model file names
             File f = new File(file_sat_list);
@@ -502,20 +1090,30 @@ public class ExtractModels {
             return 1;
         }
 
+        if (quota_aware) {
+            List<String> history = new ArrayList<>(Arrays.asList(probe_history_files));
+            history.add(dirname + "/commandScopes.csv");
+            logger.info("Read " + SatPrior.load(history) + " SAT and UNSAT results of the probe history");
+        }
+
         // Extract models
-        for (int i = file_count; i < file_names.size(); i++) {
-            String path = file_names.get(i);
-            logger.info("RUN NO. " + i + ", " + path);
-            if (num_sat >= num_sat_wanted && num_unsat >= num_unsat_wanted) {
-                break;
-            }
-            if (new File(path).exists()) {
-                if (ExtractModelsFromFile(new File(path)) == 1) {
-                    logger.warning("Abnormal Behaviour! Something bad happened when extracting SAT and UNSAT models.");
-                }
+        num_models_at_start = num_sat + num_unsat;
+        run_start_ns = System.nanoTime();
+        startMetrics();
+        if (coordinator_port >= 0) {
+            try {
+                ExtractCoordinator.run(file_names.subList(file_count, file_names.size()));
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+                return 1;
             }
+        } else {
+            extractInThisProcess();
         }
 
+        Metrics.stop();
+        logger.info(summaryLine());
+
         // Delete the original model-set directory
         // Print out models count
         try {
@@ -524,9 +1122,22 @@ public class ExtractModels {
             summaryfile.close();
             satfile.close();
             unsatfile.close();
+            if (sweep_mode) {
+                curvesfile.close();
+            }
 
             readmefile.write("Extracted " + num_sat + " SAT models.\n");
             readmefile.write("Extracted " + num_unsat + " UNSAT models.\n");
+            double solver_hours = solver_time_ns.get() / 3600e9;
+            readmefile.write(String.format("Spent %.2f solver-hours, %.2f models per solver-hour%s.\n",
+                    solver_hours, solver_hours > 0 ? (num_sat + num_unsat - num_models_at_start) / solver_hours : 0,
+                    rank_by_predictor ? " with files ranked by the difficulty predictor" : ""));
+            if (parallel_searches) {
+                readmefile.write("Searched files in parallel: " + ProbeScheduler.summary() + ".\n");
+            }
+            if (quota_aware) {
+                readmefile.write("Put off " + deferred.size() + " files likely to only add to a met quota.\n");
+            }
         } catch (Exception e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
             return 1;
@@ -552,5 +1163,6 @@ public class ExtractModels {
         }
 
         logger.info("Completed!");
+        logger.info(Logging.summary(num_files_processed));
     }
 }
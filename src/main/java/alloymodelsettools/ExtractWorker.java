@@ -0,0 +1,163 @@
+package alloymodelsettools;
+
+import alloymodelsettools.ExtractModels.Choice;
+import alloymodelsettools.ExtractModels.Found;
+import alloymodelsettools.ExtractModels.Result;
+import edu.mit.csail.sdg.ast.Module;
+import edu.mit.csail.sdg.parser.CompUtil;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// A worker of a distributed ExtractModels run, see ExtractCoordinator. It searches scopes with the options compiled
+// into ExtractModels, in its own copy of the model set. Start any number of them, on this host or others, with:
+//   java -cp <class path> alloymodelsettools.ExtractWorker <coordinator host> <coordinator port> <model set copy>
+public class ExtractWorker {
+    static Logger logger;
+    static BufferedReader in;
+    static PrintWriter out;
+    // Set when the coordinator expired the current lease, after which the search of its file stops
+    static volatile boolean expired;
+    // The current lease, -1 between leases. Changed with the lock of the class held, so that a heartbeat is only sent
+    // for the current lease.
+    static long lease = -1;
+
+    // Sends a request to the coordinator and returns the fields of its answer. The quotas in the answer are copied
+    // to ExtractModels, so that searches stop once a result is no longer wanted.
+    static synchronized String[] request(String... fields) throws IOException {
+        for (int k = 0; k < fields.length; k++) fields[k] = fields[k].replaceAll("[\t\r\n]", " ");
+        out.println(String.join("\t", fields));
+        String line = in.readLine();
+        if (line == null) throw new EOFException("The coordinator closed the connection");
+        String[] answer = line.split("\t", -1);
+        if (answer[0].equals("OK")) {
+            ExtractModels.num_sat = Integer.parseInt(answer[1]);
+            ExtractModels.num_unsat = Integer.parseInt(answer[2]);
+        } else if (answer[0].equals("EXPIRED")) {
+            expired = true;
+        }
+        return answer;
+    }
+
+    // Streams the result of a probe of the leased file to the coordinator
+    static void probe(int scope, Result result, long duration) {
+        try {
+            request("PROBE", String.valueOf(lease), String.valueOf(scope),
+                    result == null ? ExtractModels.Status.UNKNOWN.name() : result.status.name(),
+                    String.valueOf(duration), result == null ? "" : result.satisfiable);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // Sends a failure record of the leased file to the coordinator, which writes it to commandScopes.csv
+    static void failure(String reason) {
+        try {
+            request("FAILURE", String.valueOf(lease), reason);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // Renews the current lease, so that it does not expire while the search reports nothing
+    static synchronized void heartbeat() {
+        if (lease == -1 || expired) return;
+        try {
+            request("RENEW", String.valueOf(lease));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // Searches a scope for the i-th command of the file, starting at the scope the coordinator predicted, and reports
+    // it to the coordinator
+    static void search(File file, int i, String sha256, int guess_scope) throws IOException {
+        if (!file.exists() || !util.sha256(file.toPath()).equals(sha256)) {
+            failure("Worker copy differs from the coordinator");
+            return;
+        }
+        try {
+            Module world = CompUtil.parseEverything_fromFile(null, null, file.getPath());
+            Choice choice = new Choice(world, i, world.getAllCommands().get(i));
+            Found found = ExtractModels.search(file, choice, guess_scope);
+            if (expired) logger.info("Lease " + lease + " expired, search abandoned");
+            if (found != null && !expired) {
+                request("FOUND", String.valueOf(lease), String.valueOf(found.scope), found.strategy.name(),
+                        String.valueOf(found.result.time), found.result.satisfiable);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            failure("Other exceptions or unknown state");
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: ExtractWorker <coordinator host> <coordinator port> <model set copy>");
+            return;
+        }
+        String dir = args[2];
+        try {
+            logger = Logging.setup(dir + "/worker-" + ProcessHandle.current().pid() + ".jsonl");
+            logger.info(util.getSystemInfo());
+        } catch (Exception e) {
+            System.err.println("Failed to set up the logger: " + e.getMessage());
+            return;
+        }
+        ExtractModels.dirname = dir;
+        ExtractModels.logger = logger;
+        ExtractModels.worker = true;
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "extract-worker-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, ExtractModels.lease_seconds / 3);
+        heartbeats.scheduleAtFixedRate(ExtractWorker::heartbeat, period, period, TimeUnit.SECONDS);
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            if (ExtractModels.sweep_mode) {
+                // The curves stay with the worker
+                ExtractModels.curvesfile = new CSVPrinter(new FileWriter(dir + "/scope_curves-"
+                        + ProcessHandle.current().pid() + ".csv", true), CSVFormat.DEFAULT.withHeader("File Path",
+                        "i-th Command", "Original Command", "Overall Scope", "Status", "Time", "Satisfiable?"));
+            }
+            while (true) {
+                String[] answer = request("LEASE");
+                if (answer[0].equals("DONE")) break;
+                if (answer[0].equals("WAIT")) {
+                    Thread.sleep(Long.parseLong(answer[1]) * 1000);
+                    continue;
+                }
+                synchronized (ExtractWorker.class) {
+                    lease = Long.parseLong(answer[1]);
+                    expired = false;
+                }
+                logger.info("LEASE " + lease + ", " + answer[2]);
+                search(new File(dir + "/" + answer[2]), Integer.parseInt(answer[3]), answer[4],
+                        Integer.parseInt(answer[5]));
+                synchronized (ExtractWorker.class) {
+                    request("END", String.valueOf(lease));
+                    lease = -1;
+                }
+            }
+            if (ExtractModels.curvesfile != null) ExtractModels.curvesfile.close();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+        heartbeats.shutdownNow();
+        logger.info("Completed!");
+        logger.info(Logging.summary(0));
+    }
+}
@@ -0,0 +1,226 @@
+package alloymodelsettools;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+// Logging shared by all entry points: every record is written as one JSON object per line to the log file by a
+// background thread, so the hot loops only pay for putting the record in a bounded queue.
+public class Logging {
+    // Users set these options.
+    // Whether records are written by a background thread. Set to false to measure the cost of synchronous logging.
+    static boolean async = true;
+    // Records waiting to be written. When the queue is full, records below WARNING are dropped and counted, while
+    // WARNING and above wait for space.
+    static int queue_capacity = 10000;
+    // Level of every stage logger, see stage. Stages not listed log at INFO.
+    static Map<String, Level> stage_levels = new HashMap<String, Level>() {{
+        put("parse", Level.INFO);
+        put("probe", Level.INFO);
+    }};
+    // Level of the records also printed on the console
+    static Level console_level = Level.WARNING;
+    // Full stack traces are only logged for the first few exceptions of each class, see stackTraceAllowed
+    static int max_stack_traces_per_exception = 5;
+
+    static final String LOGGER_NAME = "MyLog";
+    static AsyncJsonHandler handler;
+    static final Map<String, AtomicInteger> exceptionCounts = new ConcurrentHashMap<>();
+
+    // Sets up the "MyLog" logger to write JSON lines to the given file, and returns it.
+    static Logger setup(String filename) throws IOException {
+        Logger logger = Logger.getLogger(LOGGER_NAME);
+        logger.setUseParentHandlers(false);
+        handler = new AsyncJsonHandler(new FileHandler(filename, true));
+        logger.addHandler(handler);
+        ConsoleHandler console = new ConsoleHandler();
+        console.setLevel(console_level);
+        logger.addHandler(console);
+        return logger;
+    }
+
+    // Returns the logger of a stage of the pipeline, like "parse" or "probe". Its records go to the handlers of
+    // "MyLog", and its level is set by stage_levels.
+    static Logger stage(String name) {
+        Logger logger = Logger.getLogger(LOGGER_NAME + "." + name);
+        logger.setLevel(stage_levels.getOrDefault(name, Level.INFO));
+        return logger;
+    }
+
+    // Whether a stack trace should still be logged for this exception: true for the first
+    // max_stack_traces_per_exception exceptions of its class, so that the same failure repeated over thousands of
+    // files only logs its message.
+    static boolean stackTraceAllowed(Throwable e) {
+        return exceptionCounts.computeIfAbsent(e.getClass().getName(), k -> new AtomicInteger())
+                .incrementAndGet() <= max_stack_traces_per_exception;
+    }
+
+    // Logs the exception at the given level, with its stack trace only if stackTraceAllowed.
+    static void logException(Logger logger, Level level, Throwable e) {
+        if (stackTraceAllowed(e)) {
+            logger.log(level, e.getMessage(), e);
+        } else {
+            logger.log(level, e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    // Waits for the queued records to be written and summarizes the time logging cost the callers, per processed
+    // file if files is positive.
+    static String summary(int files) {
+        if (handler == null) return "";
+        handler.flush();
+        long records = handler.records.get();
+        String s = String.format("Logged %d records (%d dropped), %.1f us per record in the caller and %.1f us "
+                        + "per record to format and write", records, handler.dropped.get(),
+                records == 0 ? 0 : handler.callerNanos.get() / 1000.0 / records,
+                records == 0 ? 0 : handler.writerNanos.get() / 1000.0 / records);
+        if (files > 0) {
+            s += String.format(", %.1f us per file in the caller", handler.callerNanos.get() / 1000.0 / files);
+        }
+        if (!exceptionCounts.isEmpty()) s += ". Exceptions by class: " + exceptionCounts;
+        return s + (async ? "" : " (synchronous)");
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
+    // Formats a record as one JSON object per line
+    static class JsonFormatter extends Formatter {
+        @Override
+        public String format(LogRecord record) {
+            StringBuilder sb = new StringBuilder("{\"time\":\"").append(Instant.ofEpochMilli(record.getMillis()))
+                    .append("\",\"level\":\"").append(record.getLevel())
+                    .append("\",\"logger\":\"").append(escape(String.valueOf(record.getLoggerName())))
+                    .append("\",\"message\":\"").append(escape(String.valueOf(formatMessage(record)))).append('"');
+            if (record.getThrown() != null) {
+                StringWriter stack = new StringWriter();
+                record.getThrown().printStackTrace(new PrintWriter(stack));
+                sb.append(",\"exception\":\"").append(escape(record.getThrown().getClass().getName()))
+                        .append("\",\"stack\":\"").append(escape(stack.toString())).append('"');
+            }
+            return sb.append("}\n").toString();
+        }
+    }
+
+    // Hands records to a background thread which formats them and writes them with the delegate handler.
+    static class AsyncJsonHandler extends Handler {
+        final Handler delegate;
+        final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(queue_capacity);
+        final Thread writer;
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong callerNanos = new AtomicLong();
+        final AtomicLong writerNanos = new AtomicLong();
+        // Records queued but not written yet
+        final AtomicInteger pending = new AtomicInteger();
+
+        AsyncJsonHandler(Handler delegate) {
+            this.delegate = delegate;
+            delegate.setFormatter(new JsonFormatter());
+            writer = new Thread(this::drain, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void write(LogRecord record) {
+            long start = System.nanoTime();
+            delegate.publish(record);
+            writerNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        void drain() {
+            try {
+                while (true) {
+                    write(queue.take());
+                    pending.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if (!isLoggable(record)) return;
+            long start = System.nanoTime();
+            records.incrementAndGet();
+            if (!async) {
+                synchronized (this) {
+                    write(record);
+                }
+            } else if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                pending.incrementAndGet();
+                try {
+                    queue.put(record);
+                } catch (InterruptedException e) {
+                    pending.decrementAndGet();
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                pending.incrementAndGet();
+                if (!queue.offer(record)) {
+                    pending.decrementAndGet();
+                    dropped.incrementAndGet();
+                }
+            }
+            callerNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        @Override
+        public void flush() {
+            while (pending.get() > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            delegate.flush();
+        }
+
+        @Override
+        public void close() {
+            flush();
+            writer.interrupt();
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package alloymodelsettools;
+
+import oshi.SystemInfo;
+import oshi.hardware.GlobalMemory;
+
+import java.util.concurrent.Semaphore;
+
+// Admits RunCommand processes only while the memory they may use fits in the memory that was available when the
+// run started, so that parallel workers cannot oversubscribe the host. Memory is counted in MB.
+public class MemoryAdmission {
+    // Memory kept for the driver process and the operating system
+    static int reserved_mb = 1024;
+    // Memory a JVM needs on top of its maximum heap (metaspace, code cache, thread stacks)
+    static int jvm_overhead_mb = 256;
+
+    static int capacity_mb;
+    static Semaphore available;
+
+    static synchronized void init() {
+        if (available != null) return;
+        GlobalMemory memory = new SystemInfo().getHardware().getMemory();
+        capacity_mb = (int) Math.max(1, memory.getAvailable() / (1024 * 1024) - reserved_mb);
+        available = new Semaphore(capacity_mb, true);
+    }
+
+    // Number of processes with the given maximum heap that fit in memory at the same time, at least 1
+    static int maxWorkers(int heap_mb) {
+        init();
+        return Math.max(1, capacity_mb / (heap_mb + jvm_overhead_mb));
+    }
+
+    // Largest maximum heap of a process that fits in memory with its JVM overhead, at least 1
+    static int maxHeap() {
+        init();
+        return Math.max(1, capacity_mb - jvm_overhead_mb);
+    }
+
+    // Blocks until a process with the given maximum heap fits in memory and returns the memory reserved for it,
+    // which must be given back with release. A process larger than the whole capacity is admitted alone.
+    static int acquire(int heap_mb) throws InterruptedException {
+        init();
+        int mb = Math.min(heap_mb + jvm_overhead_mb, capacity_mb);
+        available.acquire(mb);
+        return mb;
+    }
+
+    static void release(int mb) {
+        available.release(mb);
+    }
+}
@@ -0,0 +1,127 @@
+package alloymodelsettools;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Counters, gauges and histograms of a long run, served in the Prometheus text format on
+// http://localhost:<port>/metrics. Check it with: curl http://localhost:<port>/metrics
+public class Metrics {
+    // Metric name with its labels, like probes_total{status="SUCCESS"} -> count
+    static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    static final Map<String, Supplier<Double>> gauges = new ConcurrentSkipListMap<>();
+    static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    static HttpServer server;
+
+    static class Histogram {
+        final double[] bounds;
+        // counts[i] is the number of observations <= bounds[i], the last one counts all observations
+        final LongAdder[] counts;
+        final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void observe(double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) counts[i].increment();
+            }
+            counts[bounds.length].increment();
+            sum.add(value);
+        }
+    }
+
+    static String key(String name, String label, String value) {
+        return name + "{" + label + "=\"" + value + "\"}";
+    }
+
+    static void inc(String name) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+    }
+
+    static void inc(String name, String label, String value) {
+        counters.computeIfAbsent(key(name, label, value), k -> new LongAdder()).increment();
+    }
+
+    static long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    static void gauge(String name, Supplier<Double> value) {
+        gauges.put(name, value);
+    }
+
+    // Records an observation in the histogram with the given bucket upper bounds, creating it if needed
+    static void observe(String name, double[] bounds, double value) {
+        histograms.computeIfAbsent(name, k -> new Histogram(bounds)).observe(value);
+    }
+
+    static String baseName(String key) {
+        return key.contains("{") ? key.substring(0, key.indexOf('{')) : key;
+    }
+
+    // All metrics in the Prometheus text exposition format
+    static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        String lastType = "";
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            String name = baseName(counter.getKey());
+            if (!name.equals(lastType)) sb.append("# TYPE ").append(name).append(" counter\n");
+            lastType = name;
+            sb.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Supplier<Double>> gauge : gauges.entrySet()) {
+            String name = baseName(gauge.getKey());
+            if (!name.equals(lastType)) sb.append("# TYPE ").append(name).append(" gauge\n");
+            lastType = name;
+            sb.append(gauge.getKey()).append(' ').append(gauge.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String name = entry.getKey();
+            Histogram h = entry.getValue();
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            for (int i = 0; i < h.bounds.length; i++) {
+                sb.append(key(name + "_bucket", "le", String.valueOf(h.bounds[i]))).append(' ')
+                        .append(h.counts[i].sum()).append('\n');
+            }
+            long total = h.counts[h.bounds.length].sum();
+            sb.append(key(name + "_bucket", "le", "+Inf")).append(' ').append(total).append('\n');
+            sb.append(name).append("_sum ").append(h.sum.sum()).append('\n');
+            sb.append(name).append("_count ").append(total).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Serves scrape() on http://localhost:<port>/metrics, for this host only
+    static void serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    static void stop() {
+        if (server != null) server.stop(0);
+    }
+}
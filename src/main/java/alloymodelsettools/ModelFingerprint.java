@@ -0,0 +1,58 @@
+package alloymodelsettools;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Hash of the tokens of an Alloy model, without its comments, whitespace, module name and commands, so that copies
+// of a model that were renamed, reformatted, recommented or given other commands have the same fingerprint.
+public class ModelFingerprint {
+    public static String of(String source) {
+        AlloyLexer.Stripped stripped = AlloyLexer.strip(source);
+        String content = stripped.replaceCommands(-1, "");
+        StringBuilder tokens = new StringBuilder(content.length());
+        int n = content.length();
+        int i = 0;
+        boolean afterModule = false;
+        while (i < n) {
+            char c = content.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (AlloyLexer.isIdentifierStart(c)) {
+                while (i < n && AlloyLexer.isIdentifierPart(content.charAt(i))) i++;
+            } else if (Character.isDigit(c)) {
+                while (i < n && Character.isDigit(content.charAt(i))) i++;
+            } else {
+                i++;
+            }
+            String token = content.substring(start, i);
+            if (afterModule) {
+                // The module name is usually the file name, skip it with its path
+                if (!token.equals("/")) afterModule = i < n && content.charAt(i) == '/';
+                continue;
+            }
+            if (tokens.length() == 0 && token.equals("module")) {
+                afterModule = true;
+                continue;
+            }
+            tokens.append(token).append(' ');
+        }
+        return util.sha256(tokens.toString());
+    }
+
+    // Fingerprint -> path of every .als file under dir
+    public static Map<String, String> index(File dir) throws IOException {
+        if (!dir.isDirectory()) throw new IOException(dir.getAbsolutePath() + " is not a directory");
+        Map<String, String> fingerprints = new HashMap<>();
+        for (File file : FileUtils.listFiles(dir, new String[]{"als"}, true)) {
+            fingerprints.putIfAbsent(of(util.read(file.toPath())), file.getPath());
+        }
+        return fingerprints;
+    }
+}
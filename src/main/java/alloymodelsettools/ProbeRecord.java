@@ -0,0 +1,99 @@
+package alloymodelsettools;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Result of one RunCommand process, sent to the process that started it as a single length-prefixed binary record
+// on the worker's stdout. Everything else the worker prints goes to its stderr.
+public class ProbeRecord {
+    static final int VERSION = 1;
+    // writeUTF cannot write strings longer than 64KB
+    static final int MAX_MESSAGE_LENGTH = 4096;
+
+    // SAT, UNSAT: the command was solved.
+    // TRANSLATED: the command was only translated to CNF.
+    // EXCEPTION: parsing, translating or solving threw errorClass.
+    public enum Outcome {
+        SAT, UNSAT, TRANSLATED, EXCEPTION
+    }
+
+    public Outcome outcome = Outcome.EXCEPTION;
+    // Times in ns. executionTime covers translating and solving.
+    public long parseTime;
+    public long translationTime;
+    public long executionTime;
+    public int primaryVars;
+    public int totalVars;
+    public int clauses;
+    public String errorClass = "";
+    public String errorMessage = "";
+
+    public void write(OutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(VERSION);
+        data.writeByte(outcome.ordinal());
+        data.writeLong(parseTime);
+        data.writeLong(translationTime);
+        data.writeLong(executionTime);
+        data.writeInt(primaryVars);
+        data.writeInt(totalVars);
+        data.writeInt(clauses);
+        data.writeUTF(errorClass);
+        data.writeUTF(errorMessage.length() > MAX_MESSAGE_LENGTH
+                ? errorMessage.substring(0, MAX_MESSAGE_LENGTH) : errorMessage);
+        DataOutputStream framed = new DataOutputStream(out);
+        framed.writeInt(bytes.size());
+        bytes.writeTo(framed);
+        framed.flush();
+    }
+
+    // Returns the first record in bytes, null if there is no complete record of this version.
+    public static ProbeRecord read(byte[] bytes) {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)), bytes.length);
+    }
+
+    // Returns the records written one after the other to bytes, like those of a scope ladder, up to the first
+    // incomplete one.
+    public static List<ProbeRecord> readAll(byte[] bytes) {
+        List<ProbeRecord> records = new ArrayList<>();
+        DataInputStream framed = new DataInputStream(new ByteArrayInputStream(bytes));
+        ProbeRecord record;
+        while ((record = read(framed, bytes.length)) != null) records.add(record);
+        return records;
+    }
+
+    static ProbeRecord read(DataInputStream framed, int available) {
+        try {
+            int length = framed.readInt();
+            if (length < 0 || length > available - Integer.BYTES) return null;
+            byte[] payload = new byte[length];
+            framed.readFully(payload);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            if (data.readByte() != VERSION) return null;
+            ProbeRecord record = new ProbeRecord();
+            record.outcome = Outcome.values()[data.readByte()];
+            record.parseTime = data.readLong();
+            record.translationTime = data.readLong();
+            record.executionTime = data.readLong();
+            record.primaryVars = data.readInt();
+            record.totalVars = data.readInt();
+            record.clauses = data.readInt();
+            record.errorClass = data.readUTF();
+            record.errorMessage = data.readUTF();
+            return record;
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String s = outcome + ", parse time(ns): " + parseTime + ", translation time(ns): " + translationTime
+                + ", execution time(ns): " + executionTime + ", primary variables: " + primaryVars
+                + ", total variables: " + totalVars + ", clauses: " + clauses;
+        if (outcome == Outcome.EXCEPTION) s += ", " + errorClass + ": " + errorMessage;
+        return s;
+    }
+}
@@ -0,0 +1,306 @@
+package alloymodelsettools;
+
+import alloymodelsettools.ExtractModels.Choice;
+import alloymodelsettools.ExtractModels.Found;
+import alloymodelsettools.ExtractModels.Result;
+import alloymodelsettools.ExtractModels.Status;
+import alloymodelsettools.RunCommand.ScopeStrategy;
+import edu.mit.csail.sdg.ast.Command;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Searches the scopes of several files at once for ExtractModels, with up to num_workers RunCommand processes
+// running. Every step of a binary search, one probe of a command at one scope, is a task of its own, and a process
+// slot that frees up takes the pending step expected to be the shortest, whatever search it belongs to. So short
+// probes, like the small scopes that turn out TOOSHORT, run ahead of probes likely to time out, and no slot stays idle
+// while one file grinds through timeouts. Each search is the same as ExtractModels.binarySearch, one strategy after
+// the other. Like ProbeSupervisor, no thread waits for a process: a search moves on when its probe completes.
+public class ProbeScheduler {
+    static class Search {
+        final File file;
+        final Choice choice;
+        // Index in scope_strategies of the strategy being searched
+        int strategy = -1;
+        // Scopes left to search, and the scope to try first, -1 for the middle of the range
+        int min_scope;
+        int max_scope;
+        int guess_scope;
+        int outOfMemoryScope = -1;
+        // Expected duration of the next probe
+        long expected_ns = (ExtractModels.lower_bound_of_time_range_in_seconds
+                + ExtractModels.higher_bound_of_time_range_in_seconds) * 500000000L;
+
+        Search(File file, Choice choice) {
+            this.file = file;
+            this.choice = choice;
+        }
+
+        ScopeStrategy strategy() {
+            return ExtractModels.scope_strategies[strategy];
+        }
+    }
+
+    static class Step implements Comparable<Step> {
+        final Search search;
+        final int scope;
+        final long expected_ns;
+        // Order the steps were made in, so that steps expected to take as long run first come, first served
+        final long order;
+        long start_ns;
+
+        Step(Search search, int scope, long order) {
+            this.search = search;
+            this.scope = scope;
+            this.expected_ns = search.expected_ns;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Step other) {
+            int c = Long.compare(expected_ns, other.expected_ns);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+    }
+
+    static Logger logger;
+    static final PriorityQueue<Step> steps = new PriorityQueue<>();
+    // Probes running, killed once the quotas are met
+    static final Set<CompletableFuture<Result>> running = new HashSet<>();
+    static Iterator<String> files;
+    // Searches started and not finished yet
+    static int open = 0;
+    static int in_flight = 0;
+    static int capacity;
+    static long steps_made = 0;
+    static boolean closed;
+    // Totals over every run of the scheduler
+    static long probes = 0;
+    static long elapsed_ns = 0;
+
+    static boolean quotasMet() {
+        return ExtractModels.num_sat >= ExtractModels.num_sat_wanted
+                && ExtractModels.num_unsat >= ExtractModels.num_unsat_wanted;
+    }
+
+    // Searches the given files until they are all searched or the quotas are met
+    static void run(List<String> paths) throws InterruptedException {
+        logger = ExtractModels.logger;
+        long start = System.nanoTime();
+        synchronized (ProbeScheduler.class) {
+            files = paths.iterator();
+            capacity = ExtractModels.workerCapacity();
+            closed = false;
+            open();
+            while (!quotasMet() && (open > 0 || files.hasNext())) {
+                ProbeScheduler.class.wait();
+            }
+            // Only when the quotas are met can searches be left open. Their results would not be recorded, so the
+            // probes still running are killed.
+            closed = true;
+            steps.clear();
+            for (CompletableFuture<Result> run : running) run.cancel(true);
+            running.clear();
+        }
+        elapsed_ns += System.nanoTime() - start;
+        logger.info(summary());
+    }
+
+    // Throughput of the scheduler: probes per hour, and models found per core-hour, counting one core per process
+    // slot for the time the scheduler ran
+    static String summary() {
+        double hours = elapsed_ns / 3600e9;
+        int models = ExtractModels.num_sat + ExtractModels.num_unsat - ExtractModels.num_models_at_start;
+        return String.format("%d probes, %.1f probes per hour, %.2f models per core-hour with %d workers", probes,
+                hours > 0 ? probes / hours : 0, hours > 0 ? models / (hours * capacity) : 0, capacity);
+    }
+
+    // Starts searching more files, keeping twice as many searches open as processes can run, so that there is
+    // always a short step to choose from
+    static synchronized void open() {
+        while (!closed && open < 2 * capacity && files.hasNext() && !quotasMet()) {
+            String path = files.next();
+            if (!new File(path).exists()) continue;
+            logger.info("SEARCH " + path);
+            ExtractModels.num_files_processed++;
+            Metrics.inc("extract_files_processed_total");
+            open++;
+            CompletableFuture.runAsync(() -> start(new File(path)), ProbeSupervisor.callbacks);
+        }
+    }
+
+    // Closes a search, and opens the next ones
+    static synchronized void finish() {
+        open--;
+        open();
+        ProbeScheduler.class.notifyAll();
+    }
+
+    // Chooses the command of the file and starts its search. Runs without the lock, since it may probe the file.
+    static void start(File file) {
+        Choice choice = null;
+        try {
+            synchronized (ProbeScheduler.class) {
+                choice = ExtractModels.choose(file);
+            }
+            if (choice != null && ExtractModels.quota_aware && ExtractModels.deferring
+                    && ExtractModels.shouldDefer(file.getPath(), choice.i)) {
+                choice = null;
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            choice = null;
+        }
+        if (choice == null) {
+            finish();
+        } else {
+            nextStrategy(new Search(file, choice));
+        }
+    }
+
+    // Moves the search on to its next strategy, or finishes it if there is none. Runs without the lock, since
+    // bounding the scope by translation runs translate-only processes.
+    static void nextStrategy(Search search) {
+        String path = search.file.getPath();
+        Command command = search.choice.command;
+        try {
+            while (++search.strategy < ExtractModels.scope_strategies.length) {
+                ScopeStrategy strategy = search.strategy();
+                if (RunCommand.changeScope(command, search.choice.world.getAllReachableSigs(),
+                        ExtractModels.min_scope, strategy) == null) {
+                    logger.info("Scope strategy " + strategy + " does not apply to command: " + command);
+                    continue;
+                }
+                logger.info("Searching scope of " + path + " with strategy " + strategy);
+                int upper_scope = ExtractModels.max_scope;
+                if (ExtractModels.bound_scope_by_translation) {
+                    upper_scope = ExtractModels.translationBound(path, search.choice.i, strategy,
+                            ExtractModels.min_scope, ExtractModels.max_scope);
+                    logger.info("Translation bounds the scope to " + upper_scope);
+                    if (upper_scope < ExtractModels.min_scope) {
+                        synchronized (ProbeScheduler.class) {
+                            ExtractModels.csvFailureRecord(path, search.choice.i, command,
+                                    "Translation too large at scope " + ExtractModels.min_scope);
+                        }
+                        continue;
+                    }
+                }
+                search.min_scope = ExtractModels.min_scope;
+                search.max_scope = upper_scope;
+                search.guess_scope = ExtractModels.predictedScope(path);
+                search.outOfMemoryScope = -1;
+                step(search);
+                dispatch();
+                return;
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+        finish();
+    }
+
+    // Queues the next probe of the search. The caller starts it with dispatch once it no longer holds the lock.
+    static synchronized void step(Search search) {
+        if (closed) return;
+        int scope = search.guess_scope >= search.min_scope && search.guess_scope <= search.max_scope
+                ? search.guess_scope : search.min_scope + (search.max_scope - search.min_scope) / 2;
+        search.guess_scope = -1;
+        steps.add(new Step(search, scope, steps_made++));
+    }
+
+    // Starts the shortest pending steps while there are free process slots. Runs without the lock, since starting a
+    // probe waits in MemoryAdmission for memory that processes outside the slots, like out-of-memory retries,
+    // translate-only probes and prior probes, may hold for a while.
+    static void dispatch() {
+        while (true) {
+            Step step;
+            synchronized (ProbeScheduler.class) {
+                if (closed || in_flight >= capacity || steps.isEmpty()) return;
+                step = steps.poll();
+                in_flight++;
+                probes++;
+            }
+            Search search = step.search;
+            step.start_ns = System.nanoTime();
+            CompletableFuture<Result> run = ExtractModels.runCommandAsync(search.file.getPath(), search.choice.i,
+                    step.scope, search.strategy());
+            synchronized (ProbeScheduler.class) {
+                if (closed) {
+                    run.cancel(true);
+                } else {
+                    running.add(run);
+                }
+            }
+            run.whenCompleteAsync((result, e) -> done(step, run, result), ProbeSupervisor.callbacks);
+        }
+    }
+
+    // Moves the search of a finished step on, like one call of ExtractModels.binarySearch
+    static void done(Step step, CompletableFuture<Result> run, Result result) {
+        boolean next_strategy = false;
+        synchronized (ProbeScheduler.class) {
+            in_flight--;
+            running.remove(run);
+            if (closed) return;
+            Search search = step.search;
+            String path = search.file.getPath();
+            Choice choice = search.choice;
+            long duration = System.nanoTime() - step.start_ns;
+            Status status = result == null ? Status.UNKNOWN : result.status;
+            String satisfiable = result == null ? "" : result.satisfiable;
+            boolean finished = true;
+            try {
+                if (ExtractModels.num_sat >= ExtractModels.num_sat_wanted && satisfiable.equals("SAT")) {
+                    logger.info("Enough sat models");
+                    ExtractModels.csvFailureRecord(path, choice.i, choice.command, "Enough sat models");
+                } else if (ExtractModels.num_unsat >= ExtractModels.num_unsat_wanted
+                        && satisfiable.equals("UNSAT")) {
+                    logger.info("Enough unsat models");
+                    ExtractModels.csvFailureRecord(path, choice.i, choice.command, "Enough unsat models");
+                } else if (status == Status.SUCCESS) {
+                    ExtractModels.record(search.file, choice, new Found(step.scope, search.strategy(),
+                            RunCommand.changeScope(choice.command, choice.world.getAllReachableSigs(), step.scope,
+                                    search.strategy()), result));
+                } else if (status == Status.EXCEPTION || status == Status.UNKNOWN) {
+                    logger.warning("Exception or unknown error thrown when doing binary search with scope "
+                            + step.scope);
+                    ExtractModels.csvFailureRecord(path, choice.i, choice.command,
+                            "Other exceptions or unknown state");
+                } else {
+                    if (status == Status.TOOSHORT) {
+                        search.min_scope = step.scope + 1;
+                        // Larger scopes take longer, but this is the best guess among the searches
+                        search.expected_ns = duration;
+                    } else {
+                        if (status == Status.OUTOFMEMORY) search.outOfMemoryScope = step.scope;
+                        search.max_scope = step.scope - 1;
+                        search.expected_ns = duration / 2;
+                    }
+                    if (search.min_scope <= search.max_scope) {
+                        finished = false;
+                        step(search);
+                    } else {
+                        ExtractModels.recordScopeNotFound(path, choice.i, choice.command, search.min_scope,
+                                search.max_scope, search.outOfMemoryScope);
+                        next_strategy = true;
+                    }
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+            if (finished && !next_strategy) {
+                finish();
+            }
+            ProbeScheduler.class.notifyAll();
+        }
+        dispatch();
+        if (next_strategy) nextStrategy(step.search);
+    }
+}
@@ -0,0 +1,105 @@
+package alloymodelsettools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Supervises worker processes without a thread per process: the stdout of a process goes to a temporary file which
+// is read once the process exits, the exit is observed through Process.onExit(), and a single timer thread enforces
+// the timeout of every process with destroyForcibly. The stderr of a process is appended to a log file or discarded.
+public class ProbeSupervisor {
+    static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "probe-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // Runs the callbacks of finished processes that may block, like starting a retry
+    static final ExecutorService callbacks = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "probe-callback");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static class ProbeOutput {
+        public final int exitValue;
+        public final boolean timedOut;
+        public final byte[] stdout;
+
+        public ProbeOutput(int exitValue, boolean timedOut, byte[] stdout) {
+            this.exitValue = exitValue;
+            this.timedOut = timedOut;
+            this.stdout = stdout;
+        }
+    }
+
+    // Starts klass in a new JVM with the given JVM and program arguments, and completes with its exit value and
+    // stdout once it exits. The process is killed if it runs longer than timeoutSeconds, or if the returned future is
+    // cancelled. Its stderr is appended to stderrLog, or discarded if stderrLog is null.
+    public static CompletableFuture<ProbeOutput> launch(Class klass, List<String> jvmArgs, List<String> args,
+                                                        long timeoutSeconds, File stderrLog) throws IOException {
+        return launch(klass, System.getProperty("java.class.path"), jvmArgs, args, timeoutSeconds, stderrLog);
+    }
+
+    // Same as above with klass loaded from the given class path, like the jar of another build of the tool.
+    public static CompletableFuture<ProbeOutput> launch(Class klass, String classpath, List<String> jvmArgs,
+                                                        List<String> args, long timeoutSeconds, File stderrLog)
+            throws IOException {
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new LinkedList<>();
+        command.add(javaBin);
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(klass.getName());
+        command.addAll(args);
+
+        Path output = Files.createTempFile("probe", ".out");
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectOutput(output.toFile());
+        builder.redirectError(stderrLog == null ? ProcessBuilder.Redirect.DISCARD
+                : ProcessBuilder.Redirect.appendTo(stderrLog));
+        Process process = builder.start();
+
+        AtomicBoolean killed = new AtomicBoolean(false);
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (process.isAlive()) {
+                killed.set(true);
+                process.destroyForcibly();
+            }
+        }, timeoutSeconds, TimeUnit.SECONDS);
+
+        CompletableFuture<ProbeOutput> result = process.onExit().thenApplyAsync(p -> {
+            timeout.cancel(false);
+            byte[] stdout = new byte[0];
+            try {
+                stdout = Files.readAllBytes(output);
+            } catch (IOException e) {
+                // Reported as a process without result
+            }
+            delete(output);
+            return new ProbeOutput(p.exitValue(), killed.get(), stdout);
+        }, callbacks);
+        result.whenComplete((o, e) -> {
+            if (result.isCancelled()) {
+                timeout.cancel(false);
+                process.destroyForcibly();
+                // The output is not read then
+                process.onExit().thenRunAsync(() -> delete(output), callbacks);
+            }
+        });
+        return result;
+    }
+
+    static void delete(Path output) {
+        try {
+            Files.deleteIfExists(output);
+        } catch (IOException ignored) {
+            // A left over temporary file is harmless
+        }
+    }
+}
@@ -25,7 +25,6 @@ import edu.mit.csail.sdg.parser.CompUtil;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.io.FileUtils;
 
 import java.io.*;
 import java.nio.charset.Charset;
@@ -36,10 +35,9 @@ import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.logging.FileHandler;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 
 // recreate model set from a supplied csv file
@@ -48,6 +46,15 @@ public class RecreateModelSet {
     // Path to the model_summary file can either be relative or absolute, relative path are expected tobe relative to 
     // "catalyst/". One example: "model-sets/model_summary.csv".
     static String pathToSummaryFile = "model-sets/model_summary.csv";
+    // Whether to keep the gathered files model_summary.csv does not list. They are deleted by default, so that
+    // cleaning up and parsing only spend time on listed files.
+    static boolean keep_unlisted_files = false;
+    // Threads fetching repositories and writing the new commands into the listed files
+    static int num_threads = Runtime.getRuntime().availableProcessors();
+    // Whether to fetch only the repositories the summary file names, at the recorded commits and with only the
+    // listed files checked out, instead of cloning every repository found on GitHub. Summaries written before
+    // repositories were recorded are recreated from a full scrape.
+    static boolean targeted_fetch = true;
     // You don't need to change anything after this line
 
     // Override other settings, turn off all filters with randomness
@@ -80,6 +87,17 @@ public class RecreateModelSet {
     static int numFilesFromExisting = 0;
     static int numFilesRemoved = 0;
     static Logger logger;
+    static Logger parseLogger = Logging.stage("parse");
+    static Set<String> listedFiles = new HashSet<>();
+    // Directories of the listed files, relative to the model set directory. Other models in them are kept since
+    // listed models may open them.
+    static Set<String> listedDirectories = new HashSet<>();
+    // Repository directory -> {url, commit} of the listed files from recorded repositories
+    static Map<String, String[]> listedRepositories = new HashMap<>();
+    // Repository directory -> sparse checkout patterns of its listed files
+    static Map<String, Set<String>> sparsePatterns = new HashMap<>();
+    // Whether some listed files do not come from a recorded repository
+    static boolean unrecordedFiles = false;
     static int num_sat = 0;
     static int num_unsat = 0;
     // stdio is used for error output
@@ -96,15 +114,8 @@ public class RecreateModelSet {
             readmefile = new FileWriter(readmefilename);
             readmefile.write("Model set created: " + dirname + "\n");
 
-            // Set up logger
-            logger = Logger.getLogger("MyLog");
-            FileHandler fh;
-            // Configure the logger with handler and formatter
-            fh = new FileHandler(dirname + "/log.txt", true);
-            logger.addHandler(fh);
-            System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tc %2$s%n%4$s: %5$s%6$s%n");
-            SimpleFormatter formatter = new SimpleFormatter();
-            fh.setFormatter(formatter);
+            // Set up logger, writing one JSON object per line
+            logger = Logging.setup(dirname + "/log.jsonl");
             // Print out $machine info
             logger.info(util.getSystemInfo());
             return 0;
@@ -119,14 +130,14 @@ public class RecreateModelSet {
             if (file.isDirectory()) {
                 RemoveDoNotParse(file.listFiles());
                 // Calls  same method again.
-            } else {
-                // Parse+typecheck the model
-                logger.info("=========== Parsing+Typechecking " + file.getPath() + " =============");
+            } else if (keep_unlisted_files || listedFiles.contains(relativePath(file))) {
+                // Parse+typecheck the model, models kept next to listed ones are only opened by them
+                parseLogger.fine("=========== Parsing+Typechecking " + file.getPath() + " =============");
                 try {
                     Module world = CompUtil.parseEverything_fromFile(null, null, file.getPath());
                 } catch (Exception e) {
-                    logger.log(Level.INFO, e.getMessage(), e);
-                    logger.info(file.getPath() + " do not parse");
+                    Logging.logException(parseLogger, Level.INFO, e);
+                    parseLogger.info(file.getPath() + " do not parse");
                     numFilesRemoved++;
                     if (!file.delete()) {
                         logger.warning("Abnormal Behaviour! Something bad happened when deleting files do not parse.");
@@ -269,64 +280,160 @@ public class RecreateModelSet {
         }
     }
 
-    static Integer recreateModelSet() {
-        FileWriter csvWriter;
+    // Reads the paths of the files listed in the summary file, relative to the model set directory
+    static Integer readListedFiles() {
+        try (Reader in = new FileReader(pathToSummaryFile)) {
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                String path = record.get("File Path");
+                listedFiles.add(path);
+                String parent = Paths.get(path).getParent() == null ? "" : Paths.get(path).getParent().toString();
+                listedDirectories.add(parent);
+                String repo_path = record.isMapped("Path in Repository") ? record.get("Path in Repository") : "";
+                if (repo_path.isEmpty() || !path.endsWith("/" + repo_path)) {
+                    unrecordedFiles = true;
+                    continue;
+                }
+                String directory = path.substring(0, path.length() - repo_path.length() - 1);
+                listedRepositories.put(directory, new String[]{record.get("Repository"), record.get("Commit")});
+                // Every model of the repository, since Alloy resolves the modules a listed file opens from the
+                // module root, which can be anywhere in the repository
+                sparsePatterns.computeIfAbsent(directory, k -> new LinkedHashSet<>()).add("*.als");
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return 1;
+        }
+        return 0;
+    }
+
+    // Fetches the repositories of the listed files concurrently, each at its recorded commit with only its models
+    // checked out.
+    static Integer FetchListedRepositories() {
+        ExecutorService pool = Executors.newFixedThreadPool(num_threads);
+        List<Future<Boolean>> fetched = new ArrayList<>();
+        for (Map.Entry<String, String[]> repository : listedRepositories.entrySet()) {
+            String directory = repository.getKey();
+            fetched.add(pool.submit(() -> util.FetchSparse(repository.getValue()[0], repository.getValue()[1],
+                    new File(dirname + "/" + directory), sparsePatterns.get(directory), logger)));
+        }
+        pool.shutdown();
+        int failures = 0;
+        try {
+            for (Future<Boolean> f : fetched) {
+                if (!f.get()) failures++;
+            }
+            readmefile.write("Fetched " + (listedRepositories.size() - failures) + " of "
+                    + listedRepositories.size() + " repositories named in " + pathToSummaryFile
+                    + " at their recorded commits.\n");
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return 1;
+        }
+        if (failures > 0) logger.warning("Failed to fetch " + failures + " repositories");
+        return 0;
+    }
+
+    static String relativePath(File file) {
+        return Paths.get(dirname).relativize(file.toPath()).toString();
+    }
+
+    // Whether the path, relative to the model set directory, is in a repository fetched for the listed files
+    static boolean inListedRepository(String path) {
+        for (String directory : listedRepositories.keySet()) {
+            if (path.startsWith(directory + "/")) return true;
+        }
+        return false;
+    }
+
+    // Deletes the gathered files the summary file does not list, except models next to listed ones and the models
+    // of fetched repositories, which listed models may open, so that only listed files are cleaned up and parsed.
+    // Files at the top of dirname, like README.md and log.jsonl, are this run's own.
+    static void RemoveUnlistedFiles() {
+        for (File f : new File(dirname).listFiles()) {
+            if (f.isDirectory()) {
+                RemoveUnlistedFiles(f.listFiles());
+            }
+        }
+    }
+
+    public static void RemoveUnlistedFiles(File[] files) {
+        for (File file : files) {
+            if (file.isDirectory()) {
+                RemoveUnlistedFiles(file.listFiles());
+            } else if (!listedFiles.contains(relativePath(file))
+                    && !listedDirectories.contains(relativePath(file.getParentFile()))
+                    && !inListedRepository(relativePath(file))) {
+                if (!file.delete()) {
+                    logger.warning("Abnormal Behaviour! Something bad happened when deleting unlisted files.");
+                }
+            }
+        }
+    }
+
+    // Writes the new command of a record into its file
+    static void recreateModel(CSVRecord record) {
+        String file_path = record.get("File Path");
+        String satisfiable = record.get("Satisfiable?");
+        String command_str = record.get("New Command");
+
+        File file = new File(dirname + "/" + file_path);
         try {
+            if (!file.exists()) {
+                synchronized (summaryfile) {
+                    summaryfile.printRecord(file_path, "file not found");
+                    summaryfile.flush();
+                }
+                return;
+            }
+            // Print files with new commands in sat and unsat directories
+            Path path = file.toPath();
+            Charset charset = StandardCharsets.UTF_8;
+            String content = Files.readString(path, charset);
+            // Remove all comments and commands, and add the new command
+            content = AlloyLexer.strip(content).withCommand(command_str);
+            Files.write(path, content.getBytes(charset));
+
+            synchronized (summaryfile) {
+                if (satisfiable.equals("SAT")) {
+                    num_sat++;
+                    satfile.write(file_path + "\n");
+                } else {
+                    num_unsat++;
+                    unsatfile.write(file_path + "\n");
+                }
+                summaryfile.printRecord(file_path, "success");
+                summaryfile.flush();
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    // Streams the records of the summary file to num_threads threads. Reading waits while the queue of records is
+    // full, so memory stays bounded whatever the size of the summary.
+    static Integer recreateModelSet() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(num_threads, num_threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(num_threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        try (Reader in = new FileReader(pathToSummaryFile)) {
             // Open the CSV reader
-            Reader in = new FileReader(pathToSummaryFile);
             Iterable<CSVRecord> records = CSVFormat.DEFAULT
                     .withHeader("File Path", "Satisfiable?", "New Command", "Scope")
                     .withFirstRecordAsHeader()
                     .parse(in);
-            csvWriter = new FileWriter(dirname + "/result.csv");
-            summaryfile = new CSVPrinter(csvWriter, CSVFormat.DEFAULT.withHeader("File Path", "Status"));
+            summaryfile = new CSVPrinter(new FileWriter(dirname + "/result.csv"),
+                    CSVFormat.DEFAULT.withHeader("File Path", "Status"));
 
             // Open the .txt files containing sat/unsat model file names
-            File f = new File(dirname + "/sat_models.txt");
             satfile = new FileWriter(dirname + "/sat_models.txt");
-            f = new File(dirname + "/unsat_models.txt");
             unsatfile = new FileWriter(dirname + "/unsat_models.txt");
 
             for (CSVRecord record : records) {
-                String file_path = record.get("File Path");
-                String satisfiable = record.get("Satisfiable?");
-                String command_str = record.get("New Command");
-
-                File file = new File(dirname + "/" + file_path);
-                if (!file.exists()) {
-                    summaryfile.printRecord(file_path, "file not found");
-                    summaryfile.flush();
-                    continue;
-                }
-                try {
-                    // Print files with new commands in sat and unsat directories
-                    Path path = file.toPath();
-                    Charset charset = StandardCharsets.UTF_8;
-                    String content = FileUtils.readFileToString(file);
-                    // Remove all comments
-                    content = content.replaceAll("//.*|--.*|/\\*[\\S\\s]*?\\*/", "");
-                    // Remove all commands using regular expression
-                    // name : ["run" or "check"] anything* until the start of next block
-                    String pattern = "(\\w+\\s*:\\s*|\\b)(check|run)\\b[\\S\\s]*?(?=(" +
-                            "(abstract|assert|check|fact|fun|module|none|open|pred|run|((var\\s+)?((lone|some|one)\\s+)?)sig)\\s|\\Z))";
-                    content = content.replaceAll(pattern, "\n");
-                    content = content + "\n" + command_str + "\n";
-                    Files.write(path, content.getBytes(charset));
-
-                    if (satisfiable.equals("SAT")) {
-                        num_sat++;
-                        satfile.write(file.getPath().split(dirname + "/", 2)[1] + "\n");
-                    } else {
-                        num_unsat++;
-                        unsatfile.write(file.getPath().split(dirname + "/", 2)[1] + "\n");
-                    }
-                    summaryfile.printRecord(file_path, "success");
-                    summaryfile.flush();
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, e.getMessage(), e);
-                }
+                pool.execute(() -> recreateModel(record));
             }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
         } catch (Exception e) {
+            pool.shutdownNow();
             logger.log(Level.SEVERE, e.getMessage(), e);
             return 1;
         }
@@ -356,7 +463,18 @@ public class RecreateModelSet {
             return;
         }
 
-        if (gatherFromGithub) {
+        if (readListedFiles() == 1) {
+            logger.warning("Failed to read " + pathToSummaryFile);
+            return;
+        }
+
+        boolean targeted = targeted_fetch && !listedRepositories.isEmpty();
+        if (targeted) {
+            if (FetchListedRepositories() == 1) {
+                logger.warning("Failed to fetch the repositories named in " + pathToSummaryFile);
+                return;
+            }
+        } else if (gatherFromGithub) {
             // Gather from github
             if (util.GatherFromGithub(num_git_repos, logger, dirname, readmefile) == 1) {
                 logger.warning("Failed to gather models from github");
@@ -364,7 +482,7 @@ public class RecreateModelSet {
             }
         }
 
-        if (downloadPlatinumModelSet) {
+        if (downloadPlatinumModelSet && (!targeted || unrecordedFiles)) {
             // Gather from github
             if (util.DownloadPlatinumFromGoogleDrive(logger, dirname, readmefile) == 1) {
                 logger.warning("Failed to download Platinum model set from Google Drive");
@@ -372,6 +490,10 @@ public class RecreateModelSet {
             }
         }
 
+        if (!keep_unlisted_files) {
+            RemoveUnlistedFiles();
+        }
+
         // Remove non-Alloy files, Alloy util/library models and duplicate models if options set
         if (CleanUpFiles() == 1) {
             logger.warning("Failed to remove not needed files");
@@ -391,6 +513,9 @@ public class RecreateModelSet {
                     return;
                 }
             }
+            if (!keep_unlisted_files) {
+                RemoveUnlistedFiles();
+            }
         }
 
         printNumOfFiles();
@@ -400,6 +525,7 @@ public class RecreateModelSet {
             return;
         }
 
+        logger.info(Logging.summary(numAlsFiles));
         try {
             readmefile.close();
         } catch (Exception e) {
@@ -1,112 +1,264 @@
 package alloymodelsettools;
 
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.ast.Command;
+import edu.mit.csail.sdg.ast.CommandScope;
 import edu.mit.csail.sdg.ast.Module;
+import edu.mit.csail.sdg.ast.Sig;
 import edu.mit.csail.sdg.parser.CompUtil;
 import edu.mit.csail.sdg.translator.A4Options;
 import edu.mit.csail.sdg.translator.A4Solution;
 import edu.mit.csail.sdg.translator.TranslateAlloyToKodkod;
 
-import java.io.File;
-import java.time.Duration;
+import java.io.*;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.concurrent.*;
+import java.util.List;
 
 public class RunCommand {
-    // Attempts to shut down an ExecutorService and wait 10s for tasks to
-    // respond to being cancelled. Note there's no guarantee it shut downs the
-    // ExecutorService.
-    static void shutdownAndAwaitTermination(ExecutorService pool) {
-        // shutdownNow() attempts to stop all actively executing tasks, halts
-        // the processing of waiting tasks. But, there are no guarantees
-        // beyond best-effort attempts to stop processing actively executing
-        // tasks. For example, any task that fails to respond to interrupts
-        // may never terminate.
-        pool.shutdownNow();
-        try {
-            // Wait a while for tasks to respond to being cancelled
-            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
-                System.err.println("ExecutorService did not terminate");
+    // How a scope found by the search is applied to a command.
+    // OVERALL: set the overall scope, and drop all individual scopes and exact scopes.
+    // PROPORTIONAL: set the overall scope and scale every individual scope by the same factor, so the original
+    //               per-sig ratios and exactness are kept.
+    // DOMINANT_SIG: keep the original command and only set the scope of its dominant sig, see dominantSig.
+    public enum ScopeStrategy {
+        OVERALL, PROPORTIONAL, DOMINANT_SIG
+    }
+
+    // Alloy gives every topsig a scope of 3 if the command has no overall scope
+    static final int DEFAULT_SCOPE = 3;
+
+    // Returns the sig whose scope is tuned by the DOMINANT_SIG strategy: the sig named
+    // ExtractModels.dominant_sig_name if it is set, otherwise the sig with the largest explicit scope in the command.
+    // Sigs with multiplicity "one" are never chosen. Returns null if there is no such sig.
+    static Sig dominantSig(Command cmd, Iterable<Sig> sigs) {
+        if (!ExtractModels.dominant_sig_name.isEmpty()) {
+            for (Sig sig : sigs) {
+                if (sig.isOne == null && (sig.label.equals(ExtractModels.dominant_sig_name)
+                        || sig.label.endsWith("/" + ExtractModels.dominant_sig_name))) {
+                    return sig;
+                }
+            }
+            return null;
+        }
+        CommandScope largest = null;
+        for (CommandScope cs : cmd.scope) {
+            if (cs.sig.isOne == null && (largest == null || cs.startingScope > largest.startingScope)) {
+                largest = cs;
             }
-        } catch (InterruptedException ie) {
-            // (Re-)Cancel if current thread also interrupted
-            pool.shutdownNow();
-            // Preserve interrupt status
-            Thread.currentThread().interrupt();
         }
+        return largest == null ? null : largest.sig;
     }
 
-    // If the new overall scope is -1, leave the command unchanged.
-    // Otherwise, set the overall scope, and drop all individual scopes and
-    // exact scopes.
-    public static Command changeOverallScope(Command cmd, int overall) {
-        if (overall == -1) return cmd;
-        return new Command(cmd.pos, cmd.nameExpr, cmd.label, cmd.check, overall,
-                cmd.bitwidth, cmd.maxseq, cmd.expects, new ArrayList<>(),
+    static int scale(int original, int scope, int base) {
+        return Math.max(1, Math.round((float) original * scope / base));
+    }
+
+    // Applies scope to the command with the given strategy. If scope is -1,
+    // leave the command unchanged. The bitwidth is set to
+    // ExtractModels.bitwidth unless that is -1, and maxseq is scaled with the
+    // scope only for PROPORTIONAL when ExtractModels.scale_maxseq is set.
+    // Returns null if the strategy does not apply to this command.
+    public static Command changeScope(Command cmd, Iterable<Sig> sigs, int scope, ScopeStrategy strategy) {
+        if (scope == -1) return cmd;
+        int bitwidth = ExtractModels.bitwidth == -1 ? cmd.bitwidth : ExtractModels.bitwidth;
+        if (strategy == ScopeStrategy.OVERALL) {
+            return new Command(cmd.pos, cmd.nameExpr, cmd.label, cmd.check, scope,
+                    bitwidth, cmd.maxseq, cmd.expects, new ArrayList<>(),
+                    cmd.additionalExactScopes, cmd.formula, cmd.parent);
+        }
+        List<CommandScope> scopes = new ArrayList<>();
+        if (strategy == ScopeStrategy.PROPORTIONAL) {
+            int base = cmd.overall > 0 ? cmd.overall : DEFAULT_SCOPE;
+            for (CommandScope cs : cmd.scope) {
+                // A sig with multiplicity "one" must keep scope 1
+                int newScope = cs.sig.isOne != null ? cs.startingScope : scale(cs.startingScope, scope, base);
+                scopes.add(new CommandScope(cs.pos, cs.sig, cs.isExact, newScope, newScope, cs.increment));
+            }
+            int maxseq = ExtractModels.scale_maxseq && cmd.maxseq > 0 ? scale(cmd.maxseq, scope, base) : cmd.maxseq;
+            return new Command(cmd.pos, cmd.nameExpr, cmd.label, cmd.check, scope,
+                    bitwidth, maxseq, cmd.expects, scopes,
+                    cmd.additionalExactScopes, cmd.formula, cmd.parent);
+        }
+        Sig dominant = dominantSig(cmd, sigs);
+        if (dominant == null) return null;
+        boolean found = false;
+        for (CommandScope cs : cmd.scope) {
+            if (cs.sig == dominant) {
+                scopes.add(new CommandScope(cs.pos, cs.sig, cs.isExact, scope, scope, cs.increment));
+                found = true;
+            } else {
+                scopes.add(cs);
+            }
+        }
+        if (!found) scopes.add(new CommandScope(Pos.UNKNOWN, dominant, false, scope, scope, 1));
+        return new Command(cmd.pos, cmd.nameExpr, cmd.label, cmd.check, cmd.overall,
+                bitwidth, cmd.maxseq, cmd.expects, scopes,
                 cmd.additionalExactScopes, cmd.formula, cmd.parent);
     }
 
+    // Size of the CNF Kodkod translates a command into
+    public static class TranslationStats {
+        public int primaryVars;
+        public int totalVars;
+        public int clauses;
+        public long translationTime;
+    }
+
+    // Records the size of the CNF and the time it took to translate since
+    // startTime, when the translation hands the CNF to the solver.
+    static class StatsReporter extends A4Reporter {
+        final TranslationStats stats;
+        final long startTime;
+
+        StatsReporter(TranslationStats stats, long startTime) {
+            this.stats = stats;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void solve(int primaryVars, int totalVars, int clauses) {
+            stats.primaryVars = primaryVars;
+            stats.totalVars = totalVars;
+            stats.clauses = clauses;
+            stats.translationTime = System.nanoTime() - startTime;
+        }
+    }
+
+    // Translates the command to CNF without solving it, by using the CNF
+    // "solver" which only writes the CNF to a temporary file, and deletes that
+    // file. Variables and clauses stay 0 if Kodkod solves the problem during
+    // translation already.
+    public static TranslationStats translate(Module world, Command command) throws IOException {
+        A4Options options = new A4Options();
+        options.solver = A4Options.SatSolver.CNF;
+        options.tempDirectory = Files.createTempDirectory("catalyst").toString();
+        TranslationStats stats = new TranslationStats();
+        long startTime = System.nanoTime();
+        try {
+            TranslateAlloyToKodkod.execute_command(new StatsReporter(stats, startTime), world.getAllReachableSigs(),
+                    command, options);
+        } finally {
+            File[] cnfFiles = new File(options.tempDirectory).listFiles();
+            if (cnfFiles != null) {
+                for (File f : cnfFiles) f.delete();
+            }
+            new File(options.tempDirectory).delete();
+        }
+        if (stats.translationTime == 0) stats.translationTime = System.nanoTime() - startTime;
+        return stats;
+    }
+
+    // Messages of the exception and all its causes
+    static String describe(Throwable e) {
+        StringBuilder sb = new StringBuilder();
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (sb.length() > 0) sb.append(" <- ");
+            sb.append(t);
+        }
+        return sb.toString();
+    }
+
+    // Solver of a probe: the A4Options.SatSolver with the id given by -Dcatalyst.solver=<id> in the worker's JVM
+    // arguments, like "minisat(jni)", SAT4J by default.
+    static A4Options.SatSolver solver() {
+        String id = System.getProperty("catalyst.solver");
+        if (id == null) return A4Options.SatSolver.SAT4J;
+        for (A4Options.SatSolver solver : A4Options.SatSolver.values()) {
+            if (solver.id().equals(id)) return solver;
+        }
+        throw new IllegalArgumentException("Unknown solver " + id);
+    }
+
+    // Runs the command at the given scope, or only translates it to CNF, in this JVM. The parse time of the
+    // returned record is left for the caller to set.
+    static ProbeRecord probe(Module world, Command command, int scope, ScopeStrategy strategy,
+                             boolean translateOnly) {
+        ProbeRecord record = new ProbeRecord();
+        Command newCommand = null;
+        try {
+            // Choose some default options for how you want to execute the commands
+            A4Options options = new A4Options();
+
+            options.solver = solver();
+            newCommand = changeScope(command, world.getAllReachableSigs(), scope, strategy);
+            // Execute the command. The process that started this one kills it on timeout.
+            System.out.println("============ Command " + newCommand + ": ============");
+            TranslationStats stats;
+            if (translateOnly) {
+                stats = translate(world, newCommand);
+                record.outcome = ProbeRecord.Outcome.TRANSLATED;
+                record.executionTime = stats.translationTime;
+            } else {
+                stats = new TranslationStats();
+                long startTime = System.nanoTime();
+                A4Solution ans = TranslateAlloyToKodkod.execute_command(new StatsReporter(stats, startTime),
+                        world.getAllReachableSigs(), newCommand, options);
+                record.executionTime = System.nanoTime() - startTime;
+                record.outcome = ans.satisfiable() ? ProbeRecord.Outcome.SAT : ProbeRecord.Outcome.UNSAT;
+            }
+            record.translationTime = stats.translationTime;
+            record.primaryVars = stats.primaryVars;
+            record.totalVars = stats.totalVars;
+            record.clauses = stats.clauses;
+        } catch (Throwable e) {
+            // Exception thrown, including OutOfMemoryError
+            System.out.println("Something bad happened when executing command: " + newCommand);
+            e.printStackTrace(System.out);
+            record.outcome = ProbeRecord.Outcome.EXCEPTION;
+            record.errorClass = e.getClass().getName();
+            record.errorMessage = describe(e);
+        }
+        return record;
+    }
+
     // Takes in command line arguments: .als file path, whichCommand to be
-    // executed (first, second, or ...) and the overall scope to be set to.
+    // executed (first, second, or ...), the scope to be set to, optionally
+    // the ScopeStrategy used to apply it (OVERALL by default) and optionally
+    // "translate" to only translate the command to CNF and report its size
+    // instead of solving it. The scope can also be a comma-separated ladder
+    // of scopes, like "2,3,4,5", which are run one after the other in this
+    // JVM on the same parsed model, see ScopeLadder.
+    // The result is written to stdout as a ProbeRecord, one per scope of a
+    // ladder, anything else this process prints goes to stderr.
     public static void main(String[] args) {
         File file = new File(args[0]);
         int whichCommand = Integer.parseInt(args[1]);
-        int overall = Integer.parseInt(args[2]);
+        String[] scopes = args[2].split(",");
+        ScopeStrategy strategy = args.length > 3 ? ScopeStrategy.valueOf(args[3]) : ScopeStrategy.OVERALL;
+        boolean translateOnly = args.length > 4 && args[4].equals("translate");
 
-        // Parse+typecheck the model
-        System.out.println("=========== Parsing+Typechecking " + file.getPath() + " =============");
+        OutputStream protocol = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+        ProbeRecord record = new ProbeRecord();
         try {
+            // Parse+typecheck the model
+            System.out.println("=========== Parsing+Typechecking " + file.getPath() + " =============");
+            long startTime = System.nanoTime();
             Module world = CompUtil.parseEverything_fromFile(null, null, file.getPath());
-
-            // Choose some default options for how you want to execute the commands
-            A4Options options = new A4Options();
-
-            options.solver = A4Options.SatSolver.SAT4J;
+            long parseTime = System.nanoTime() - startTime;
             Command command = world.getAllCommands().get(whichCommand);
-            final Command newCommand = changeOverallScope(command, overall);
-            ExecutorService executor = Executors.newSingleThreadExecutor();
-            Future<Long> handler = executor.submit(new Callable() {
-                @Override
-                public Long call() throws Exception {
-                    // Execute the command
-                    System.out.println("============ Command " + newCommand + ": ============");
-                    long startTime = System.nanoTime();
-                    A4Solution ans = TranslateAlloyToKodkod.execute_command(null, world.getAllReachableSigs(), newCommand, options);
-                    // Print the outcome
-                    // System.out.println(ans);
-                    // If satisfiable...
-                    if (ans.satisfiable()) {
-                        System.out.println("Satisfiable?: SAT");
-                    } else {
-                        System.out.println("Satisfiable?: UNSAT");
-                    }
-                    long endTime = System.nanoTime();
-                    return endTime - startTime;
-                }
-            });
-            try {
-                System.out.println("Execution time(ns): " + handler.get(Duration.ofSeconds(ExtractModels.higher_bound_of_time_range_in_seconds + 1).toMillis(), TimeUnit.MILLISECONDS));
-                System.exit(0);
-            } catch (TimeoutException e) {
-                // Timeout
-                System.out.println("TIMEOUT");
-                shutdownAndAwaitTermination(executor);
-                System.exit(1);
-            } catch (Exception e) {
-                // Exception thrown
-                System.out.println("Something bad happened when executing command: " + newCommand);
-                e.printStackTrace(System.out);
-                shutdownAndAwaitTermination(executor);
-                System.exit(2);
+            for (int k = 0; k < scopes.length; k++) {
+                record = probe(world, command, Integer.parseInt(scopes[k]), strategy, translateOnly);
+                // Only the first run of a ladder parses the model
+                record.parseTime = k == 0 ? parseTime : 0;
+                if (k < scopes.length - 1) record.write(protocol);
             }
-            shutdownAndAwaitTermination(executor);
-        } catch (Exception e) {
-            // Exception thrown
-            System.out.println("Something bad happened in the RunCommand process.");
+        } catch (Throwable e) {
+            // Exception thrown when parsing, including OutOfMemoryError
+            System.out.println("Something bad happened when parsing " + file.getPath());
+            e.printStackTrace(System.out);
+            record.outcome = ProbeRecord.Outcome.EXCEPTION;
+            record.errorClass = e.getClass().getName();
+            record.errorMessage = describe(e);
+        }
+        try {
+            record.write(protocol);
+        } catch (IOException e) {
             e.printStackTrace(System.out);
-            System.exit(2);
+            System.exit(3);
         }
-        // Should never reach here. This line is added here to ensure it always terminates.
-        System.exit(3);
+        System.exit(record.outcome == ProbeRecord.Outcome.EXCEPTION ? 2 : 0);
     }
 }
@@ -0,0 +1,81 @@
+package alloymodelsettools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.function.Function;
+
+// The seed of a run and the random streams derived from it. Every random choice of the scripts comes from its own
+// stream, keyed by the stage making it and the item it is made for (a file path or hash, a search query), so the
+// same seed makes the same choices whatever the order or the thread the items are processed in. The seed is
+// recorded in the README.md of the model set, so a run can be repeated by setting the seed option of the script.
+public class RunSeed {
+    // Line of README.md recording the seed
+    static final String README_PREFIX = "Random seed: ";
+    static long seed = new SecureRandom().nextLong();
+
+    // Seeds this run with the given seed, or with a new one if it is -1, and returns the seed in use
+    static long set(long s) {
+        if (s != -1) seed = s;
+        return seed;
+    }
+
+    // The last seed recorded in dirname/README.md, null if there is none
+    static Long recorded(String dirname) throws IOException {
+        File readme = new File(dirname + "/README.md");
+        if (!readme.exists()) return null;
+        Long found = null;
+        try (BufferedReader br = new BufferedReader(new FileReader(readme))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(README_PREFIX)) {
+                    found = Long.parseLong(line.substring(README_PREFIX.length()).trim());
+                }
+            }
+        }
+        return found;
+    }
+
+    static String readmeLine() {
+        return README_PREFIX + seed + "\n";
+    }
+
+    // FNV-1a hash of the stage and key
+    static long hash(String stage, String key) {
+        long h = 0xcbf29ce484222325L;
+        String s = stage + '\0' + key;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // The random stream of the given stage for the given item
+    static SplittableRandom stream(String stage, String key) {
+        return new SplittableRandom(seed ^ hash(stage, key));
+    }
+
+    // A random number for the item, the same whenever it is asked for in the same stage
+    static long rank(String stage, String key) {
+        return stream(stage, key).nextLong();
+    }
+
+    // Puts items in a random order that only depends on the seed and the keys of the items, not on their current
+    // order
+    static void order(List<String> items, String stage, Function<String, String> key) {
+        Map<String, Long> ranks = new HashMap<>();
+        for (String item : items) ranks.put(item, rank(stage, key.apply(item)));
+        items.sort(Comparator.comparing((String item) -> ranks.get(item)).thenComparing(Comparator.naturalOrder()));
+    }
+
+    // Fisher-Yates shuffle drawing from random
+    static <T> void shuffle(List<T> list, SplittableRandom random) {
+        for (int i = list.size() - 1; i > 0; i--) {
+            Collections.swap(list, i, random.nextInt(i + 1));
+        }
+    }
+}
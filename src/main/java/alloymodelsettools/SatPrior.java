@@ -0,0 +1,75 @@
+package alloymodelsettools;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Chance that a command of a model is satisfiable at the scopes ExtractModels searches, so that models whose result
+// would only add to a quota that is already met can be put off. It comes from the results recorded for the same
+// command of the same model in the probe history (commandScopes.csv files of earlier runs), or else from a run of
+// the command at a small scope.
+public class SatPrior {
+    // Chance of SAT after the command was SAT at a small scope. Scopes are upper bounds, so an instance found at a
+    // small scope is usually still there at larger ones.
+    static final double SAT_AT_SMALL_SCOPE = 0.9;
+    // Chance of SAT after the command was UNSAT at a small scope. Larger scopes can still have an instance.
+    static final double UNSAT_AT_SMALL_SCOPE = 0.2;
+    static final Logger logger = Logger.getLogger("MyLog");
+    // "<path relative to its model set>:<i-th command>" -> {SAT results, UNSAT results} in the probe history
+    static final Map<String, int[]> history = new HashMap<>();
+
+    static String key(String relative_path, int i) {
+        return relative_path + ":" + i;
+    }
+
+    // Reads the results of the given commandScopes.csv files. Paths are taken relative to the directory of their
+    // csv file, so results carry over to a recreated or refreshed model set. Returns the number of results read.
+    static int load(List<String> historyFiles) {
+        int results = 0;
+        for (String historyFile : historyFiles) {
+            if (!new File(historyFile).exists()) continue;
+            String setDir = new File(historyFile).getParent() + "/";
+            try (Reader in = new FileReader(historyFile)) {
+                for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                    String path = record.get("File Path");
+                    // The header is printed again every time the csv file is appended to
+                    if (path.equals("File Path")) continue;
+                    // A failure record holds its reason in this column, and the reason tells the result when it was
+                    // discarded because its quota was met
+                    String satisfiable = record.get("Satisfiable?");
+                    int kind = satisfiable.equals("SAT") || satisfiable.equals("Enough sat models") ? 0
+                            : satisfiable.equals("UNSAT") || satisfiable.equals("Enough unsat models") ? 1 : -1;
+                    if (kind < 0) continue;
+                    String relative = path.startsWith(setDir) ? path.substring(setDir.length()) : path;
+                    history.computeIfAbsent(key(relative, Integer.parseInt(record.get("i-th Command"))),
+                            k -> new int[2])[kind]++;
+                    results++;
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        return results;
+    }
+
+    // Chance of SAT from the probe history, with one SAT and one UNSAT result assumed in advance, null if the
+    // command has no result in the history
+    static Double fromHistory(String relative_path, int i) {
+        int[] counts = history.get(key(relative_path, i));
+        if (counts == null) return null;
+        return (counts[0] + 1.0) / (counts[0] + counts[1] + 2.0);
+    }
+
+    // Chance of SAT from the result of a run at a small scope, null if it has no result
+    static Double fromSmallScope(String satisfiable) {
+        if (satisfiable.equals("SAT")) return SAT_AT_SMALL_SCOPE;
+        if (satisfiable.equals("UNSAT")) return UNSAT_AT_SMALL_SCOPE;
+        return null;
+    }
+}
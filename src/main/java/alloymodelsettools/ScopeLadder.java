@@ -0,0 +1,90 @@
+package alloymodelsettools;
+
+import alloymodelsettools.RunCommand.ScopeStrategy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares two ways of running a ladder of scopes of one command, like the scopes a binary search visits on its way
+// up. Cold: one RunCommand process per scope, the way ExtractModels probes. Warm: one RunCommand process running
+// every scope of the ladder on the same parsed model, so parsing and typechecking, class loading and JIT compilation
+// of Alloy, Kodkod and SAT4J are paid once. The translation and the solver still start over at every scope: Kodkod
+// only solves incrementally over one universe of atoms, and every scope has its own universe.
+// Usage: ScopeLadder <.als file> <i-th command> <scopes, like 2,3,4,5> [ScopeStrategy]
+public class ScopeLadder {
+    // Users set these options.
+    // A scope is killed after this long, a warm ladder after this long per scope
+    static long timeout_in_seconds = 30 * 60;
+    // Arguments of the RunCommand JVMs
+    static String[] jvm_args = {"-Xmx4096m", "-Xss16m"};
+    // You don't need to change anything after this line
+
+    static class Run {
+        // One record per scope, up to the first scope that timed out
+        final List<ProbeRecord> records = new ArrayList<>();
+        // Time from starting the first process to the end of the last one
+        long wall_ns;
+
+        // Parsing, translating and solving time of all the scopes, without starting the JVMs
+        long work_ns() {
+            long ns = 0;
+            for (ProbeRecord record : records) ns += record.parseTime + record.executionTime;
+            return ns;
+        }
+    }
+
+    // Runs the scopes in one RunCommand process and adds their records to run
+    static void launch(Run run, String file, int i, List<String> scopes, ScopeStrategy strategy) throws IOException {
+        long start = System.nanoTime();
+        ProbeSupervisor.ProbeOutput output = ProbeSupervisor.launch(RunCommand.class, Arrays.asList(jvm_args),
+                Arrays.asList(file, String.valueOf(i), String.join(",", scopes), strategy.name()),
+                timeout_in_seconds * scopes.size(), null).join();
+        run.wall_ns += System.nanoTime() - start;
+        run.records.addAll(ProbeRecord.readAll(output.stdout));
+    }
+
+    static Run cold(String file, int i, List<String> scopes, ScopeStrategy strategy) throws IOException {
+        Run run = new Run();
+        for (String scope : scopes) {
+            int done = run.records.size();
+            launch(run, file, i, List.of(scope), strategy);
+            // Like the warm run, stop at the first scope that timed out
+            if (run.records.size() == done) break;
+        }
+        return run;
+    }
+
+    static Run warm(String file, int i, List<String> scopes, ScopeStrategy strategy) throws IOException {
+        Run run = new Run();
+        launch(run, file, i, scopes, strategy);
+        return run;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ScopeLadder <.als file> <i-th command> <scopes, like 2,3,4,5> [ScopeStrategy]");
+            return;
+        }
+        int i = Integer.parseInt(args[1]);
+        List<String> scopes = Arrays.asList(args[2].split(","));
+        ScopeStrategy strategy = args.length > 3 ? ScopeStrategy.valueOf(args[3]) : ScopeStrategy.OVERALL;
+        Run cold = cold(args[0], i, scopes, strategy);
+        Run warm = warm(args[0], i, scopes, strategy);
+        System.out.println("Scope, cold time (s), warm time (s), outcome");
+        for (int k = 0; k < scopes.size(); k++) {
+            ProbeRecord c = k < cold.records.size() ? cold.records.get(k) : null;
+            ProbeRecord w = k < warm.records.size() ? warm.records.get(k) : null;
+            System.out.println(String.format("%s, %s, %s, %s", scopes.get(k),
+                    c == null ? "timeout" : String.format("%.3f", (c.parseTime + c.executionTime) / 1e9),
+                    w == null ? "timeout" : String.format("%.3f", (w.parseTime + w.executionTime) / 1e9),
+                    c != null ? c.outcome : w != null ? w.outcome : ""));
+        }
+        System.out.println(String.format("Cold: %.3fs wall, %.3fs parsing and solving", cold.wall_ns / 1e9,
+                cold.work_ns() / 1e9));
+        System.out.println(String.format("Warm: %.3fs wall, %.3fs parsing and solving", warm.wall_ns / 1e9,
+                warm.work_ns() / 1e9));
+        System.out.println(String.format("Warm over cold wall time: %.3f", (double) warm.wall_ns / cold.wall_ns));
+    }
+}
@@ -8,17 +8,33 @@ import org.kohsuke.github.PagedSearchIterable;
 import oshi.SystemInfo;
 import oshi.hardware.HardwareAbstractionLayer;
 
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
 
 public class util {
+    // Written in the model set directory: where every cloned repository comes from and at which commit
+    static final String REPOSITORIES_FILE = "repositories.csv";
+    // Written in the model set directory: the SHA-256 of every gathered model and whether the filters kept it, to
+    // refresh the set incrementally
+    static final String HASHES_FILE = "file_hashes.csv";
+    static final String KEPT = "kept";
+    static final String REMOVED = "removed";
 
     public static String getSystemInfo() {
         SystemInfo systemInfo = new SystemInfo();
@@ -35,6 +51,39 @@ public class util {
         return new Base32().encodeAsString(new DigestUtils(SHA_256).digest(s));
     }
 
+    // Same as sha256(String) on the bytes remaining in buffer, without copying them to the heap. The position of
+    // buffer is not changed.
+    static String sha256(ByteBuffer buffer) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        digest.update(buffer.duplicate());
+        return new Base32().encodeAsString(digest.digest());
+    }
+
+    // Same as sha256(String) on the content of a UTF-8 file, hashed from memory-mapped pages of the file instead
+    // of a String.
+    static String sha256(Path path) throws IOException {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            // A mapping is at most 2GB
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(Integer.MAX_VALUE, size - position)));
+            }
+        }
+        return new Base32().encodeAsString(digest.digest());
+    }
+
+    // Content of a UTF-8 file, decoded from memory-mapped pages of the file like sha256(Path) hashes them, instead of
+    // copying it through a stream. Malformed input is replaced, as FileUtils.readFileToString does.
+    static String read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(path + " is too large to read");
+            return StandardCharsets.UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                    .toString();
+        }
+    }
+
     static String sha256_n(String s, int n) {
         return sha256(s).substring(0, n).toLowerCase();
     }
@@ -44,6 +93,13 @@ public class util {
     }
 
     static Integer GatherFromGithub(int num_git_repos, Logger logger, String dirname, FileWriter readmefile) {
+        return GatherFromGithub(num_git_repos, logger, dirname, readmefile, new HashMap<>());
+    }
+
+    // Same as above, except that the repositories in known_commits (url -> commit) whose HEAD is still at that
+    // commit are not cloned again. They are recorded in the repositories file as they were.
+    static Integer GatherFromGithub(int num_git_repos, Logger logger, String dirname, FileWriter readmefile,
+                                    Map<String, String> known_commits) {
         // the query searches repositories that have files written in the Alloy language, but excludes repositories
         // that have files written in ableton, midi, music and mIRC (since they also use the .als extension).
         // the query also EXCLUDES the AlloyTools/models repository.
@@ -79,18 +135,32 @@ public class util {
                 for (int i = 1; i < numresults + 1; i++)
                     this.add(i);
             }};
-            Collections.shuffle(range);
+            RunSeed.shuffle(range, RunSeed.stream("github", query));
             if (num_git_repos == -1 || numresults < num_git_repos)
                 num_git_repos = numresults;
             range = range.subList(0, num_git_repos);
 
             int loopIndex = 1;
             StringBuilder gitCloneString = new StringBuilder();
+            // Directory -> url of every cloned repository
+            Map<String, String> cloned = new LinkedHashMap<>();
+            int unchanged = 0;
             for (GHRepository repo : repos) {
                 if (range.contains(loopIndex)) {
                     String str = makeCloneList ? "git clone" : "";
 
                     String url = useSSHUrl ? repo.getSshUrl() : repo.getHttpTransportUrl();
+                    if (known_commits.containsKey(url)) {
+                        String head = git(new File(dirname), logger, "ls-remote", url, "HEAD");
+                        if (head != null && head.startsWith(known_commits.get(url))) {
+                            logger.info(url + " unchanged at " + known_commits.get(url));
+                            AppendRepository(dirname, (prependSHA256 ? sha256_32(url) + "-" : "") + repo.getName(),
+                                    url, known_commits.get(url));
+                            unchanged++;
+                            loopIndex++;
+                            continue;
+                        }
+                    }
                     str += " " + url;
 
                     if (showDescriptions)
@@ -100,6 +170,7 @@ public class util {
                         if (prependSHA256)
                             str += sha256_32(url) + "-";
                         str += repo.getName();
+                        cloned.put((prependSHA256 ? sha256_32(url) + "-" : "") + repo.getName(), url);
                     }
                     logger.info(str);
                     gitCloneString.append(str);
@@ -131,6 +202,11 @@ public class util {
                 logger.log(Level.SEVERE, e.getMessage(), e);
             }
 
+            RecordRepositories(cloned, logger, dirname);
+
+            if (!known_commits.isEmpty()) {
+                readmefile.write("Skipped " + unchanged + " repos unchanged since the previous model set\n");
+            }
             // write to readme github query used
             readmefile.write("Scraped from " + num_git_repos + " github repos with query: " + query + "\n");
             return 0;
@@ -230,6 +306,11 @@ public class util {
                     logger.log(Level.SEVERE, e.getMessage(), e);
                     return 1;
                 }
+                // Keep where the repositories of the copied set come from, under their new directory
+                for (Map.Entry<String, String[]> repository : ReadRepositories(dir).entrySet()) {
+                    AppendRepository(dirname, srcDir.getName() + "/" + repository.getKey(), repository.getValue()[0],
+                            repository.getValue()[1]);
+                }
             }
         } catch (Exception e) {
             logger.log(Level.SEVERE, e.getMessage(), e);
@@ -238,6 +319,161 @@ public class util {
         return 0;
     }
 
+    // Runs git in dir and returns what it prints, trimmed, or null if it fails.
+    static String git(File dir, Logger logger, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(dir);
+        pb.redirectErrorStream(true);
+        try {
+            Process process = pb.start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            if (process.waitFor() != 0) {
+                logger.warning("git " + String.join(" ", args) + " failed in " + dir + ": " + output);
+                return null;
+            }
+            return output;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    static synchronized void AppendRepository(String dirname, String directory, String url, String commit)
+            throws IOException {
+        File file = new File(dirname + "/" + REPOSITORIES_FILE);
+        boolean isNew = !file.exists();
+        CSVFormat format = isNew ? CSVFormat.DEFAULT.withHeader("Directory", "Url", "Commit") : CSVFormat.DEFAULT;
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(file, true), format)) {
+            printer.printRecord(directory, url, commit);
+        }
+    }
+
+    // Records the commit every cloned repository is at in the repositories file of the model set. This must run
+    // before the clean up removes the .git directories.
+    static void RecordRepositories(Map<String, String> directories, Logger logger, String dirname) {
+        for (Map.Entry<String, String> repository : directories.entrySet()) {
+            File dir = new File(dirname + "/" + repository.getKey());
+            if (!dir.isDirectory()) continue;
+            String commit = git(dir, logger, "rev-parse", "HEAD");
+            if (commit == null) continue;
+            try {
+                AppendRepository(dirname, repository.getKey(), repository.getValue(), commit);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+    }
+
+    // Directory -> {url, commit} of the repositories file of a model set, empty if it has none
+    static Map<String, String[]> ReadRepositories(String dirname) throws IOException {
+        Map<String, String[]> repositories = new LinkedHashMap<>();
+        File file = new File(dirname + "/" + REPOSITORIES_FILE);
+        if (!file.exists()) return repositories;
+        try (Reader in = new FileReader(file)) {
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                repositories.put(record.get("Directory"), new String[]{record.get("Url"), record.get("Commit")});
+            }
+        }
+        return repositories;
+    }
+
+    // {url, commit, path in the repository} of a file, given by its path relative to the model set directory, or
+    // empty strings if it does not come from a recorded repository
+    static String[] Provenance(Map<String, String[]> repositories, String path) {
+        for (Map.Entry<String, String[]> repository : repositories.entrySet()) {
+            if (path.startsWith(repository.getKey() + "/")) {
+                return new String[]{repository.getValue()[0], repository.getValue()[1],
+                        path.substring(repository.getKey().length() + 1)};
+            }
+        }
+        return new String[]{"", "", ""};
+    }
+
+    // Path -> {SHA-256, kept or removed} of the hashes file of a model set, empty if it has none. Hashes files written
+    // before the filter verdict was recorded only list kept models.
+    static Map<String, String[]> ReadFileHashes(String dirname) throws IOException {
+        Map<String, String[]> hashes = new LinkedHashMap<>();
+        File file = new File(dirname + "/" + HASHES_FILE);
+        if (!file.exists()) return hashes;
+        try (Reader in = new FileReader(file)) {
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in)) {
+                hashes.put(record.get("File Path"), new String[]{record.get("SHA-256"),
+                        record.isMapped("Filter Verdict") ? record.get("Filter Verdict") : KEPT});
+            }
+        }
+        return hashes;
+    }
+
+    // Adds path -> SHA-256 of every model under the subdirectories of the model set directory to hashes
+    static void HashFiles(String dirname, Map<String, String> hashes) throws IOException {
+        for (File f : new File(dirname).listFiles()) {
+            if (f.isDirectory()) HashFiles(f.listFiles(), dirname, hashes);
+        }
+    }
+
+    static void HashFiles(File[] files, String dirname, Map<String, String> hashes) throws IOException {
+        for (File file : files) {
+            if (file.isDirectory()) {
+                HashFiles(file.listFiles(), dirname, hashes);
+            } else if (file.getName().endsWith(".als")) {
+                hashes.put(Paths.get(dirname).relativize(file.toPath()).toString(), sha256(file.toPath()));
+            }
+        }
+    }
+
+    // Writes the hashes file of a model set: the SHA-256 of every model gathered before the filters ran, kept or
+    // removed by them, then of the models added after them, followed by the carried over hashes of an earlier set it
+    // is a delta of, so that the next refresh knows every model seen so far and does not filter a removed one again.
+    // A model of this set replaces the carried over one at the same path.
+    static Integer WriteFileHashes(String dirname, Map<String, String> gathered, Map<String, String[]> carried_over,
+                                   Logger logger) {
+        try (CSVPrinter printer = new CSVPrinter(new FileWriter(dirname + "/" + HASHES_FILE),
+                CSVFormat.DEFAULT.withHeader("File Path", "SHA-256", "Filter Verdict"))) {
+            Map<String, String> kept = new LinkedHashMap<>();
+            HashFiles(dirname, kept);
+            for (Map.Entry<String, String> hash : gathered.entrySet()) {
+                printer.printRecord(hash.getKey(), hash.getValue(), kept.containsKey(hash.getKey()) ? KEPT : REMOVED);
+            }
+            for (Map.Entry<String, String> hash : kept.entrySet()) {
+                if (!gathered.containsKey(hash.getKey())) printer.printRecord(hash.getKey(), hash.getValue(), KEPT);
+            }
+            for (Map.Entry<String, String[]> hash : carried_over.entrySet()) {
+                if (!gathered.containsKey(hash.getKey()) && !kept.containsKey(hash.getKey())) {
+                    printer.printRecord(hash.getKey(), hash.getValue()[0], hash.getValue()[1]);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return 1;
+        }
+        return 0;
+    }
+
+    // Checks out only the files matching the sparse checkout patterns of the repository at url, at the given commit,
+    // into dir. The commit is fetched alone, without blobs outside the patterns, when the server allows it.
+    static boolean FetchSparse(String url, String commit, File dir, Collection<String> patterns, Logger logger) {
+        try {
+            dir.mkdirs();
+            if (git(dir, logger, "init", "-q") == null || git(dir, logger, "remote", "add", "origin", url) == null
+                    || git(dir, logger, "config", "core.sparseCheckout", "true") == null) {
+                return false;
+            }
+            Files.write(dir.toPath().resolve(".git/info/sparse-checkout"), patterns);
+            // Servers that do not allow fetching a commit by its SHA get a full fetch instead
+            if (git(dir, logger, "fetch", "-q", "--depth", "1", "--filter=blob:none", "origin", commit) == null
+                    && git(dir, logger, "fetch", "-q", "origin") == null) {
+                return false;
+            }
+            return git(dir, logger, "checkout", "-q", commit) != null;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            return false;
+        }
+    }
+
     static Integer RemoveNonAlloyFiles(Logger logger, String dirname) {
         String cleanUpCommands = "rm -rf .*\n" + // remove hidden files
                 "find . -mindepth 2 -depth -type f ! -name '*.als' -delete\n" +